@@ -0,0 +1,289 @@
+/*
+ * Directory of eigendecompositions of rate matrices, kept between
+ * runs. Decomposing the dense Q (Dgeev plus an inverse) is O(S^3) and
+ * for small trees with many states dominates the run, yet the same
+ * parameter files and truncation give the same Q run after run and
+ * fold after fold.
+ *
+ * Entries are named by a SHA-1 of Q itself (its size and the bits of
+ * every entry), which is determined by the parameters and the
+ * truncation but also stays right once EM has moved the parameters.
+ * Each file is:
+ *   int magic, int version, int n, int usable,
+ *   double eigenvalues[n], double Z[n*n], double Zinv[n*n]
+ * big-endian, matrices column-major, and is read by mapping it.
+ * usable is 0 if the eigenbasis was found unreliable, so that the
+ * exponentials are computed by the Pade fallback.
+ *
+ * Only decompositions worth finding again are stored: those of the Q
+ * built from the parameters as read, not the Qs EM passes through. The
+ * directory is kept under MAX_BYTES by removing the entries least
+ * recently used.
+ */
+package sifter.components;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.DoubleBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+
+public class EigenDecompositionCache {
+
+	private static final int MAGIC = 0x53494547; // "SIEG"
+	private static final int VERSION = 2;
+	private static final int HEADER_BYTES = 16;
+	private static final long MAX_BYTES = 4L << 30;
+
+	private File directory;
+	private int hits;
+	private int misses;
+
+	public EigenDecompositionCache(String dir) {
+		directory = new File(dir);
+
+		if (!directory.isDirectory() && !directory.mkdirs())
+			System.out.println("Warning: could not create eigendecomposition cache "
+			                   + "directory " + dir);
+
+		hits = 0;
+		misses = 0;
+	}
+
+	// Gives q its eigendecomposition, from the cache if it is there,
+	// otherwise computing it and, if store is set, adding it to the
+	// cache.
+	public void decompose(LAPACKMatrixOperationsWrapper q, boolean store) {
+		if (q.hasEigenDecomposition())
+			return;
+
+		File f = new File(directory, key(q) + ".eig");
+
+		if (f.isFile() && load(f, q)) {
+			hits++;
+			f.setLastModified(System.currentTimeMillis()); // recently used
+			return;
+		}
+
+		misses++;
+		q.eigenDecompose();
+
+		if (store) {
+			store(f, q);
+			evict(f);
+		}
+	}
+
+	public String getDirectory() {
+		return directory.getPath();
+	}
+
+	public int getHits() {
+		return hits;
+	}
+
+	public int getMisses() {
+		return misses;
+	}
+
+	public String toString() {
+		return "Eigendecomposition cache " + directory.getPath() + ": "
+		       + hits + " hits, " + misses + " misses";
+	}
+
+	private String key(LAPACKMatrixOperationsWrapper q) {
+		MessageDigest md;
+
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		byte[] b = new byte[8];
+		update(md, b, q.rows);
+		update(md, b, q.cols);
+
+		for (int i = 0; i < q.matrix.length; i++)
+			update(md, b, Double.doubleToLongBits(q.matrix[i]));
+
+		byte[] digest = md.digest();
+		StringBuffer hex = new StringBuffer();
+
+		for (int i = 0; i < digest.length; i++) {
+			hex.append(Character.forDigit((digest[i] >> 4) & 0xf, 16));
+			hex.append(Character.forDigit(digest[i] & 0xf, 16));
+		}
+
+		return hex.toString();
+	}
+
+	private static void update(MessageDigest md, byte[] b, long v) {
+		for (int i = 0; i < 8; i++)
+			b[i] = (byte)(v >>> (56 - 8 * i));
+
+		md.update(b);
+	}
+
+	private boolean load(File f, LAPACKMatrixOperationsWrapper q) {
+		int n = q.rows;
+		long expected = HEADER_BYTES + 8L * ((long)n + 2L * n * n);
+		RandomAccessFile raf = null;
+
+		try {
+			raf = new RandomAccessFile(f, "r");
+			FileChannel channel = raf.getChannel();
+
+			if (channel.size() != expected) {
+				System.out.println("Warning: ignoring truncated eigendecomposition " + f);
+				return false;
+			}
+
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, expected);
+
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION || buf.getInt() != n) {
+				System.out.println("Warning: ignoring unreadable eigendecomposition " + f);
+				return false;
+			}
+
+			boolean usable = (buf.getInt() != 0);
+			DoubleBuffer doubles = buf.asDoubleBuffer();
+			double[] d = new double[n];
+			double[] z = new double[n * n];
+			double[] zinv = new double[n * n];
+			doubles.get(d);
+			doubles.get(z);
+			doubles.get(zinv);
+			q.setEigenDecomposition(d, z, zinv, usable);
+			return true;
+		}
+		catch (IOException e) {
+			System.out.println("Warning: could not read eigendecomposition " + f + ": " + e);
+			return false;
+		}
+		finally {
+			try {
+				if (raf != null)
+					raf.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	// Removes the least recently used entries, other than keep, until
+	// the directory holds at most MAX_BYTES.
+	private void evict(File keep) {
+		File[] entries = directory.listFiles(new FilenameFilter() {
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".eig");
+			}
+		});
+
+		if (entries == null)
+			return;
+
+		long total = 0;
+
+		for (int i = 0; i < entries.length; i++)
+			total += entries[i].length();
+
+		if (total <= MAX_BYTES)
+			return;
+
+		final long[] used = new long[entries.length];
+		Integer[] order = new Integer[entries.length];
+
+		for (int i = 0; i < entries.length; i++) {
+			used[i] = entries[i].lastModified();
+			order[i] = i;
+		}
+
+		Arrays.sort(order, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				return Long.compare(used[a], used[b]);
+			}
+		});
+
+		for (int i = 0; i < order.length && total > MAX_BYTES; i++) {
+			File f = entries[order[i]];
+
+			if (f.equals(keep))
+				continue;
+
+			long length = f.length();
+
+			if (f.delete())
+				total -= length;
+		}
+	}
+
+	// Writes to a temporary file first, so that a run reading the
+	// cache never sees half an entry.
+	private void store(File f, LAPACKMatrixOperationsWrapper q) {
+		boolean usable = q.isEigenDecompositionUsable();
+		double[] d = q.getEigenvalues();
+		double[] z = q.getEigenvectors();
+		double[] zinv = q.getEigenvectorsInverse();
+		File tmp = null;
+
+		if (zinv == null)
+			return; // singular, nothing worth keeping
+
+		if (HEADER_BYTES + 8L * ((long)d.length + (long)z.length + zinv.length) > MAX_BYTES)
+			return; // would not fit in the cache at all
+
+		DataOutputStream out = null;
+
+		try {
+			tmp = File.createTempFile("eig", ".tmp", directory);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeInt(q.rows);
+			out.writeInt(usable ? 1 : 0);
+
+			for (int i = 0; i < d.length; i++)
+				out.writeDouble(d[i]);
+
+			for (int i = 0; i < z.length; i++)
+				out.writeDouble(z[i]);
+
+			for (int i = 0; i < zinv.length; i++)
+				out.writeDouble(zinv[i]);
+
+			out.close();
+			out = null;
+			// another run may have written it meanwhile; either copy
+			// will do, and readers see one or the other whole
+			Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.ATOMIC_MOVE,
+			           StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			System.out.println("Warning: could not write eigendecomposition " + f + ": " + e);
+
+			if (tmp != null)
+				tmp.delete();
+		}
+		finally {
+			try {
+				if (out != null)
+					out.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+}
@@ -28,6 +28,9 @@ public class ExpectationMaximizationObject {
 	private SifterExecutionSettingsContainer settings;
 	private boolean verbose;
 	private Date ts;
+	// whether parameters and results are written to files; folds run
+	// at the same time would overwrite each other's
+	private boolean writeFiles;
 
 	public ExpectationMaximizationObject(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pf,
 	                                     Hashtable<String, ProteinAnnotationObjectWithProbabilityMethods> prots, GOOntologyWrapper pfgo,
@@ -42,6 +45,7 @@ public class ExpectationMaximizationObject {
 		checkFunctionsMatch(pf, pfgo);
 		//checkFunctionsMatch(pfD, pfgo);
 		ts = new Date();
+		writeFiles = true;
 	}
 
 	public ExpectationMaximizationObject(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pf,
@@ -56,6 +60,7 @@ public class ExpectationMaximizationObject {
 		checkFunctionsMatch(pf, pfgo);
 		//checkFunctionsMatch(pfD, pfgo);
 		ts = new Date();
+		writeFiles = true;
 	}
 
 	public void checkFunctionsMatch(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx, GOOntologyWrapper pfgo) {
@@ -66,8 +71,9 @@ public class ExpectationMaximizationObject {
 		if (namesPFX.size() != namesDAG.size())
 			error = true;
 		else {
+			// likelihoods and parameters are matched by position
 			for (int i = 0; i < namesPFX.size(); i++) {
-				if (!namesDAG.contains(namesPFX.elementAt(i)))
+				if (!namesDAG.elementAt(i).equals(namesPFX.elementAt(i)))
 					error = true;
 			}
 		}
@@ -104,6 +110,10 @@ public class ExpectationMaximizationObject {
 		family = fam;
 	}
 
+	public void setWriteFiles(boolean b) {
+		writeFiles = b;
+	}
+
 	// Performs EM, used to estimate parameters.
 	// Output currently put into output/
 	// and returns Hashtable with posteriors from latest iteration
@@ -182,6 +192,9 @@ public class ExpectationMaximizationObject {
 	 * Method printOutTransitionMatrices.
 	 */
 	private void printOutTransitionMatrices(int iter) {
+		if (!writeFiles)
+			return;
+
 		pfx.printOutGOTermConversionRateMatrix("output/pfxIteration" + iter + ".fx");
 		pfx.printOutScale("output/scale" + iter + ".fx");
 		pfx.printOutAlpha("output/alpha" + iter + ".fx");
@@ -199,11 +212,29 @@ public class ExpectationMaximizationObject {
 		ts = new Date();
 		long endtime = ts.getTime();
 		//System.out.println("Inference time: " + (endtime - starttime));
-		Hashtable<Node, double[]> gammas = pfFam.getTree().getGammas();
-		Hashtable <Node, double[]> deltas = pfFam.getTree().getDeltas();
+
+		if (verbose) {
+			System.out.println(pfx.getExpCache());
+
+			if (pfx.getEigenCache() != null)
+				System.out.println(pfx.getEigenCache());
+
+			System.out.println(InferenceScratch.report());
+			System.out.println("Log likelihood: " + pfFam.getTree().getLogLikelihood());
+		}
+
+		// copies of the messages are only needed to print them
+		Hashtable<Node, double[]> gammas = null;
+		Hashtable <Node, double[]> deltas = null;
+
+		if (verbose) {
+			gammas = pfFam.getTree().getGammas();
+			deltas = pfFam.getTree().getDeltas();
+		}
+
 		Enumeration<ProbabilisticReconciledPhylogenyObject.Node> posts = posteriors.keys();
 
-		while (posts.hasMoreElements()) {
+		while (verbose && posts.hasMoreElements()) {
 			ProbabilisticReconciledPhylogenyObject.Node n = (posts.nextElement());
 
 			if (posteriors.containsKey(n)) {
@@ -217,14 +248,14 @@ public class ExpectationMaximizationObject {
 					System.out.print("   gamma ");
 
 					for (int i = 0; i < gamma.length; i++) {
-						System.out.print(Math.exp(gamma[i]) + " ");
+						System.out.print(gamma[i] + " ");
 					}
 
 					System.out.println();
 					System.out.print("   delta ");
 
 					for (int i = 0; i < delta.length; i++) {
-						System.out.print(Math.exp(delta[i]) + " ");
+						System.out.print(delta[i] + " ");
 					}
 
 					System.out.println();
@@ -250,6 +281,9 @@ public class ExpectationMaximizationObject {
 	 *
 	 */
 	private void prettyPrintResults(Vector<Integer> names, Hashtable<Node, double[]> posteriors) {
+		if (!writeFiles)
+			return;
+
 		int[] order = new int[names.size()];
 		String outFileName = (String)this.settings.getSetting("output");
 
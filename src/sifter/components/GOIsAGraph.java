@@ -0,0 +1,152 @@
+/*
+ * The is_a relation of the gene ontology held in arrays, so that the
+ * DAG can be walked in memory once the edges are read rather than with
+ * a database query per term. Edges are added as they are read (terms
+ * are GO numbers, so GO:0003674 is 3674); build then indexes the terms
+ * and groups each term's children, keeping them in the order read.
+ */
+package sifter.components;
+
+import java.util.Arrays;
+
+public class GOIsAGraph {
+
+	// edges as added, child and parent GO numbers
+	private int[] edgeChild;
+	private int[] edgeParent;
+	private int edges;
+
+	// distinct GO numbers, sorted; a term's index is its position here
+	public int[] terms;
+	// children of term i are children[childStart[i] .. childStart[i + 1])
+	public int[] childStart;
+	public int[] children;
+
+	public GOIsAGraph() {
+		edgeChild = new int[1024];
+		edgeParent = new int[1024];
+		edges = 0;
+	}
+
+	// A graph already built, as saved by OntologySnapshot
+	public GOIsAGraph(int[] terms, int[] childStart, int[] children) {
+		this.terms = terms;
+		this.childStart = childStart;
+		this.children = children;
+		edges = children.length;
+	}
+
+	public void addEdge(int child, int parent) {
+		if (edges == edgeChild.length) {
+			edgeChild = Arrays.copyOf(edgeChild, 2 * edges);
+			edgeParent = Arrays.copyOf(edgeParent, 2 * edges);
+		}
+
+		edgeChild[edges] = child;
+		edgeParent[edges] = parent;
+		edges++;
+	}
+
+	public int numEdges() {
+		return edges;
+	}
+
+	public int size() {
+		return terms.length;
+	}
+
+	// Indexes the terms and groups the edges by parent; call once all
+	// the edges are added
+	public void build() {
+		int[] all = new int[2 * edges];
+		System.arraycopy(edgeChild, 0, all, 0, edges);
+		System.arraycopy(edgeParent, 0, all, edges, edges);
+		Arrays.sort(all);
+		int n = 0;
+
+		for (int i = 0; i < all.length; i++)
+			if (n == 0 || all[i] != all[n - 1])
+				all[n++] = all[i];
+
+		terms = Arrays.copyOf(all, n);
+		childStart = new int[n + 1];
+		children = new int[edges];
+
+		// counting sort by parent, which keeps each parent's children
+		// in the order they were added
+		int[] parent = new int[edges];
+
+		for (int e = 0; e < edges; e++) {
+			parent[e] = index(edgeParent[e]);
+			childStart[parent[e] + 1]++;
+		}
+
+		for (int i = 0; i < n; i++)
+			childStart[i + 1] += childStart[i];
+
+		int[] next = Arrays.copyOf(childStart, n);
+
+		for (int e = 0; e < edges; e++)
+			children[next[parent[e]]++] = index(edgeChild[e]);
+
+		edgeChild = null;
+		edgeParent = null;
+	}
+
+	// index of the GO number, or -1 if it is in no edge
+	public int index(int term) {
+		int i = Arrays.binarySearch(terms, term);
+		return (i < 0) ? -1 : i;
+	}
+
+	// Fewest is_a steps from the root down to each term, -1 where the
+	// root does not reach
+	public int[] depths(int root) {
+		int[] depth = new int[terms.length];
+		int[] queue = new int[terms.length];
+		int head = 0;
+		int tail = 0;
+		Arrays.fill(depth, -1);
+
+		if (root < 0)
+			return depth;
+
+		depth[root] = 0;
+		queue[tail++] = root;
+
+		while (head < tail) {
+			int v = queue[head++];
+
+			for (int k = childStart[v]; k < childStart[v + 1]; k++) {
+				int c = children[k];
+
+				if (depth[c] < 0) {
+					depth[c] = depth[v] + 1;
+					queue[tail++] = c;
+				}
+			}
+		}
+
+		return depth;
+	}
+
+	// The GO number of an accession such as GO:0003674, or -1 if it is
+	// not one
+	public static int goNumber(String acn) {
+		if (acn == null || acn.length() < 4 || !acn.startsWith("GO:"))
+			return -1;
+
+		int v = 0;
+
+		for (int i = 3; i < acn.length(); i++) {
+			char c = acn.charAt(i);
+
+			if (c < '0' || c > '9' || v > (Integer.MAX_VALUE - 9) / 10)
+				return -1;
+
+			v = 10 * v + (c - '0');
+		}
+
+		return v;
+	}
+}
@@ -15,12 +15,19 @@ import sifter.components.ProbabilisticDAG.Node;
 import java.io.*;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
 import java.sql.Statement;
 
 public class GOOntologyWrapper {
 
+	// MF ontology top node is GO:0003674.
+	private static final int MF_ROOT = 3674;
+	// terms looked up by each query when the is_a relation is read
+	// term by term
+	private static final int IS_A_BATCH = 256;
+
 	// Denotes whether these members of the proteins
 	// should be pulled out of the SwissProt DB.
 	//private static boolean nameP;
@@ -96,7 +103,6 @@ public class GOOntologyWrapper {
 	}
 
 	private String pullOneEntry(String s, int level) {
-		Entry e = null;
 		int semicolon = s.indexOf(';');
 		String name = s.substring(0, semicolon - 1);
 		s = s.substring(semicolon + 1, s.length());
@@ -105,76 +111,302 @@ public class GOOntologyWrapper {
 		s = s.substring(semicolon + 8);
 		// not parsing EC numbers here, but could!
 		// check if its already been seen.
-		e = new Entry(id, name, level);
+		addEntry(id, name, level);
+		return s;
+	}
+	
+	// Adds the term to the DAG, if it is not already there, at the
+	// given level (or a lower one if it has one).
+	private void addEntry(int id, String name, int level) {
+		currentEntry = new Entry(id, name, level);
 
-		if (!probabilisticDAG.contains(e.getNumber())) {
-			probabilisticDAG.addNode(e.getName(), e.getNumber());
+		if (!probabilisticDAG.contains(id))
+			probabilisticDAG.addNode(currentEntry.getName(), id);
+
+		probabilisticDAG.addLevel(id, level);
+	}
+
+	/**
+	 * Reads the MF ontology below GO:0003674 from the is_a relation of
+	 * the SQLite GO database, or of an OBO file (see OBOOntologyReader)
+	 * if that is what the ontology file is. The relation is read into
+	 * memory with one query, or one pass over the file, and the DAG
+	 * built from that; a term's level is its fewest
+	 * is_a steps from the top. The relation is saved in a snapshot
+	 * beside the database, which later runs read instead while the
+	 * database is unchanged (see OntologySnapshot).
+	 * @throws ClassNotFoundException if there is no SQLite driver
+	 */
+	public void readGOFile() throws ClassNotFoundException {
+		long start = System.currentTimeMillis();
+		OntologySnapshot snapshot = new OntologySnapshot(goFileName);
+		GOIsAGraph graph = snapshot.load();
+
+		if (graph != null) {
+			if (verbose)
+				System.out.println("Read " + graph.numEdges() + " is_a relations from "
+				                   + snapshot.getFile() + " in "
+				                   + (System.currentTimeMillis() - start) + " ms");
+
+			buildDAG(graph);
+			return;
 		}
 
-		probabilisticDAG.addLevel(e.getNumber(), level);
+		long size = snapshot.getDatabaseSize();
+		long mtime = snapshot.getDatabaseTime();
+		graph = loadIsA(null);
+
+		if (graph == null)
+			return;
+
+		if (verbose)
+			System.out.println("Read " + graph.numEdges() + " is_a relations in "
+			                   + (System.currentTimeMillis() - start) + " ms");
 
-		if (e != null)
-			currentEntry = e;
+		// an ontology without the MF top is not kept for later runs
+		if (graph.index(MF_ROOT) >= 0)
+			snapshot.store(graph, size, mtime);
 
-		return s;
+		buildDAG(graph);
 	}
-	
-	@SuppressWarnings({ "rawtypes", "unchecked", "unused" })
-	public void readGOFile() throws ClassNotFoundException {
+
+	/**
+	 * Reads only the annotated terms and their is_a ancestors from the
+	 * GO database, walking up from the terms, rather than the whole MF
+	 * ontology; most families annotate a few dozen of its terms. The
+	 * terms are those tallyFunctions counts, so once pruned the DAG is
+	 * the one readGOFile would give, with the same levels and edges.
+	 * Its leaves may be listed in another order, so a run with a
+	 * parameter file puts them in the file's order (see orderLeaves).
+	 * @param fns GO numbers of the family's annotations
+	 * @param ms the annotations' methods
+	 * @throws ClassNotFoundException if there is no SQLite driver
+	 */
+	public void readGOAncestors(Vector<Integer> fns, Vector<String> ms) throws ClassNotFoundException {
+		long start = System.currentTimeMillis();
+		Vector<Integer> terms = new Vector<Integer>();
+
+		for (int i = 0; i < fns.size(); i++) {
+			String m = (ms.size() > i) ? ms.get(i) : null;
+
+			if (m != null && hasProperBackgroundSettings(m))
+				terms.add(fns.elementAt(i));
+		}
+
+		GOIsAGraph graph = loadIsA(terms);
+
+		if (graph == null)
+			return;
+
+		if (verbose)
+			System.out.println("Read " + graph.numEdges() + " is_a relations above "
+			                   + terms.size() + " annotations in "
+			                   + (System.currentTimeMillis() - start) + " ms");
+
+		buildDAG(graph);
+	}
+
+	// The is_a relation from the database, all of it or, given terms,
+	// the edges above them; null if it could not be read. An OBO file
+	// is read whole either way, which pruning brings to the same DAG.
+	private GOIsAGraph loadIsA(Vector<Integer> terms) throws ClassNotFoundException {
+		if (OBOOntologyReader.isOBO(goFileName)) {
+			try {
+				return OBOOntologyReader.read(goFileName);
+			}
+			catch (IOException e) {
+				System.err.println("readGOFile: " + goFileName + " " + e.getMessage());
+				return null;
+			}
+		}
+
 		// http://code.google.com/p/variationtoolkit/wiki/GeneOntologyDbManager
 		// https://bitbucket.org/xerial/sqlite-jdbc
 		// http://sqlitebrowser.sourceforge.net/development.html
 		Class.forName("org.sqlite.JDBC");
-		
+		Connection connection = null;
+		GOIsAGraph graph = null;
+
+		try {
+			connection = DriverManager.getConnection("jdbc:sqlite:" + goFileName);
+
+			if (terms != null)
+				graph = readIsAFrom(connection, terms, true);
+			else
+				graph = readIsA(connection);
+		}
+		catch (SQLException e) {
+			System.err.println(e.getMessage());
+		}
+		finally {
+			try {
+				if (connection != null)
+					connection.close();
+			}
+			catch (SQLException e) {
+			}
+		}
+
+		return graph;
+	}
+
+	// Depth-first from the top of the MF ontology, expanding each term
+	// once: a term seen again has had all of its descendants added
+	// already, so the DAG's nodes and edges come out in the same order
+	// as expanding it again would give.
+	private void buildDAG(GOIsAGraph graph) {
+		addEntry(MF_ROOT, "unused name", 0);
+		int top = graph.index(MF_ROOT);
+
+		if (top < 0) {
+			System.err.println("readGOFile: " + goFileName + " has no GO:"
+			                   + String.format("%07d", MF_ROOT));
+			return;
+		}
+
+		int[] depth = graph.depths(top);
+		boolean[] expanded = new boolean[graph.size()];
+		int[] stack = new int[graph.numEdges() + 1];
+		int height = 0;
+		stack[height++] = top;
+
+		while (height > 0) {
+			int p = stack[--height];
+
+			if (expanded[p])
+				continue;
+
+			expanded[p] = true;
+			int pNum = graph.terms[p];
+
+			for (int k = graph.childStart[p]; k < graph.childStart[p + 1]; k++) {
+				int c = graph.children[k];
+				addEntry(graph.terms[c], "unused name", depth[c]);
+				stack[height++] = c;
+				probabilisticDAG.addParent(graph.terms[c], pNum);
+			}
+		}
+	}
+
+	// The whole is_a relation in one query or, if that fails, the part
+	// below the top of the MF ontology a batch of terms at a time
+	private GOIsAGraph readIsA(Connection connection) throws SQLException {
+		try {
+			return readIsAAtOnce(connection);
+		}
+		catch (SQLException e) {
+			System.err.println("Reading the is_a relation at once failed (" + e.getMessage()
+			                   + "), reading it term by term");
+			Vector<Integer> top = new Vector<Integer>();
+			top.add(MF_ROOT);
+			return readIsAFrom(connection, top, false);
+		}
+	}
+
+	// The whole is_a relation, in one streamed query
+	private GOIsAGraph readIsAAtOnce(Connection connection) throws SQLException {
+		GOIsAGraph graph = new GOIsAGraph();
+		Statement statement = connection.createStatement();
+
 		try {
-			Connection connection = null;
-			connection = DriverManager.getConnection("jdbc:sqlite:"+goFileName);
-			Statement statement = connection.createStatement();
 			statement.setQueryTimeout(30);  // set timeout to 30 sec.
-			
-			Stack term_stack = new Stack();
-			Stack level_stack = new Stack();
-			
-			String topElem = "unused name ; GO:0003674"; // MF ontology top node is GO:0003674.
-			int topLevel = 0;
-			
-			// Add initial element			
-			level_stack.push(new Integer(topLevel));
-			pullOneEntry(topElem, topLevel);
-			term_stack.push(currentEntry);
-			
-			int c = 0;
-			
-			while (!term_stack.empty()) {
-				// Get "level" of this element
-				Entry p = (Entry)term_stack.pop();
-				int pLevel = ((Integer)level_stack.pop()).intValue();
-				functionList.add(pLevel, p);
-				
-				// add as new level
-				
-				ResultSet rs = statement.executeQuery("select acn,rel,target from TERM2REL where target=\"GO:"+String.format("%07d", p.goNum)+"\" and rel=\"is_a\"");
-				
-				while (rs.next()) {
-					c += 1;
-					// Each rs.getString(1) is child to parent rs.getString(3).
-					// System.out.println(rs.getString(1)+" is child to parent: "+rs.getString(3));
-					pullOneEntry("unused name ; "+rs.getString(1), pLevel + 1);
-					term_stack.push(currentEntry); 
-					level_stack.push(pLevel + 1);
-					
-					probabilisticDAG.addParent(currentEntry.getNumber(), p.getNumber());
-					
-					//if (c % 100 == 0 )
-					//	System.out.println("Slow");
+			ResultSet rs = statement.executeQuery("select acn,target from TERM2REL where rel=\"is_a\"");
+
+			while (rs.next())
+				addIsA(graph, rs.getString(1), rs.getString(2));
+
+			rs.close();
+		}
+		finally {
+			statement.close();
+		}
+
+		graph.build();
+		return graph;
+	}
+
+	// The is_a edges below the terms or, going up, above them, looking
+	// up IS_A_BATCH terms at a time with a prepared statement. The edges
+	// are added in the order of the relation, so each term's children
+	// come out in the order reading all of it would give.
+	private GOIsAGraph readIsAFrom(Connection connection, Vector<Integer> terms, boolean up) throws SQLException {
+		StringBuffer query = new StringBuffer("select rowid,acn,target from TERM2REL where rel=\"is_a\" and "
+		                                      + (up ? "acn" : "target") + " in (?");
+
+		for (int i = 1; i < IS_A_BATCH; i++)
+			query.append(",?");
+
+		query.append(")");
+		PreparedStatement statement = connection.prepareStatement(query.toString());
+		TreeMap<Long, int[]> edges = new TreeMap<Long, int[]>();
+		HashSet<Integer> seen = new HashSet<Integer>();
+		Vector<Integer> frontier = new Vector<Integer>();
+
+		for (int i = 0; i < terms.size(); i++)
+			if (seen.add(terms.elementAt(i)))
+				frontier.add(terms.elementAt(i));
+
+		try {
+			statement.setQueryTimeout(30);  // set timeout to 30 sec.
+
+			while (frontier.size() > 0) {
+				Vector<Integer> next = new Vector<Integer>();
+
+				for (int b = 0; b < frontier.size(); b += IS_A_BATCH) {
+					// a short last batch repeats its last term
+					for (int i = 0; i < IS_A_BATCH; i++) {
+						int t = frontier.elementAt(Math.min(b + i, frontier.size() - 1));
+						statement.setString(i + 1, "GO:" + String.format("%07d", t));
+					}
+
+					ResultSet rs = statement.executeQuery();
+
+					while (rs.next()) {
+						int child = GOIsAGraph.goNumber(rs.getString(2));
+						int parent = GOIsAGraph.goNumber(rs.getString(3));
+
+						if (child < 0 || parent < 0)
+							continue;
+
+						edges.put(rs.getLong(1), new int[] {child, parent});
+						int t = up ? parent : child;
+
+						if (seen.add(t))
+							next.add(t);
+					}
+
+					rs.close();
 				}
+
+				frontier = next;
 			}
-			
-		} catch (SQLException e) {
-			System.err.println(e.getMessage());
 		}
+		finally {
+			statement.close();
+		}
+
+		GOIsAGraph graph = new GOIsAGraph();
+
+		for (int[] e : edges.values())
+			graph.addEdge(e[0], e[1]);
+
+		graph.build();
+		return graph;
 	}
-	
+
+	// Adds one row of the relation; returns the child's GO number, or
+	// -1 if either side is not a GO term
+	private int addIsA(GOIsAGraph graph, String acn, String target) {
+		int child = GOIsAGraph.goNumber(acn);
+		int parent = GOIsAGraph.goNumber(target);
+
+		if (child < 0 || parent < 0)
+			return -1;
+
+		graph.addEdge(child, parent);
+		return child;
+	}
+
 	// Often called by SifterPipelineObject.java's buildDatasetGODAG().
 	// Basically, it takes the .ont file and puts it in its own data structure.
 	public void readGOFileOld() {
@@ -951,6 +1183,24 @@ public class GOOntologyWrapper {
 		return probabilisticDAG.getNumLeaves();
 	}
 
+	// Lists the leaves in the given order, the GO numbers in the header
+	// of a parameter file. Likelihoods and parameters are matched to the
+	// leaves by position, and the order the DAG gives depends on how
+	// much of the ontology was loaded. Returns false, leaving the order
+	// as it was, if the terms are not the leaves.
+	public boolean orderLeaves(Vector<Integer> order) {
+		Vector<Integer> leaves = probabilisticDAG.getAllLeaves();
+
+		if (order.size() != leaves.size()
+		    || !new HashSet<Integer>(order).equals(new HashSet<Integer>(leaves)))
+			return false;
+
+		Vector<Integer> ordered = new Vector<Integer>(order);
+		probabilisticDAG.leaves = ordered;
+		leafList = ordered;
+		return true;
+	}
+
 	////////////////////////////////////////////////////////////
 	// Accessing DAG information for inference/learning       //
 	////////////////////////////////////////////////////////////
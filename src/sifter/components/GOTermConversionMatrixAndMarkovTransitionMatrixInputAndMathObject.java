@@ -9,6 +9,8 @@
 package sifter.components;
 
 import java.util.*;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import sifter.components.LAPACKMatrixOperationsWrapper;
 
@@ -30,7 +32,31 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 	private ProteinFunctionMarkovState childPS;
 	private int maxFunctions;
 	private double currentScaling;
-	private boolean summaryNotCurrent;
+	private MatrixExponentialCache expCache;
+	// read-only exponentials precomputed for the edges of a tree
+	private Map<Double, MatrixExponentialCache.Entry> expTable;
+	// S x F indicator of which functions are in each state, and whether
+	// summaries are computed from the eigenbasis using it
+	private LAPACKMatrixOperationsWrapper functionIndicator;
+	private boolean summaryFromEigenbasis;
+	// sparse Q, used instead of transRateMatrix when the dense matrix
+	// would have more than maxDenseStates rows (or when asked for)
+	private SparseRateMatrix sparseRateMatrix;
+	private ProteinFunctionStateIndex stateIndex;
+	private boolean sparseRequested;
+	// layout of Q for stateIndex, and the parameter vector it reads
+	private RateMatrixPlan ratePlan;
+	private double[] rateParameters;
+	// optional on-disk store of eigendecompositions of the dense Q
+	private EigenDecompositionCache eigenCache;
+	// rate parameters of the first rate matrix built, as they were read
+	// in; only that matrix's eigendecomposition is stored in the cache
+	private double[] loadedParameters;
+	// S x 2F weights for the upward messages
+	private double[] statePriors;
+	private LAPACKMatrixOperationsWrapper parentWeights;
+
+	private static int maxDenseStates = 4096;
 
 	private static double probEpsilon = 1.0E-18;
 
@@ -58,6 +84,63 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 		transRateMatrix = null;
 		exlAPACKMatrixOperationsWrapperTemp = null;
 		exlAPACKMatrixOperationsWrapperSummary = null;
+		expCache = new MatrixExponentialCache();
+		expTable = null;
+		functionIndicator = null;
+		summaryFromEigenbasis = true;
+		sparseRateMatrix = null;
+		stateIndex = null;
+		sparseRequested = false;
+		ratePlan = null;
+		rateParameters = null;
+		eigenCache = null;
+		loadedParameters = null;
+		statePriors = null;
+		parentWeights = null;
+		childPS = null;
+	}
+
+	/* copy of the parameters of p (rates, scales, alphas and GO terms)
+	 * and its settings, without any of its matrices or caches, that can
+	 * be changed (by EM, say) and used on another thread independently
+	 * of p */
+	public GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject p) {
+		rows = p.rows;
+		columns = p.columns;
+		matrixRows = new Vector<Vector<Parameter>>();
+
+		for (int i = 0; i < p.matrixRows.size(); i++) {
+			Vector<Parameter> row = p.matrixRows.elementAt(i);
+			Vector<Parameter> copy = new Vector<Parameter>(row.size());
+
+			for (int j = 0; j < row.size(); j++)
+				copy.add(new Parameter(row.elementAt(j).getDelta()));
+
+			matrixRows.add(copy);
+		}
+
+		matrixRows.trimToSize();
+		maxFunctions = p.maxFunctions;
+		goTerms = (p.goTerms == null) ? null : new Vector<Integer>(p.goTerms);
+		s = p.s;
+		scaleParams = (p.scaleParams == null) ? null : new Hashtable<String, Double>(p.scaleParams);
+		alphaParams = (p.alphaParams == null) ? null : new Vector<Double>(p.alphaParams);
+		transRateMatrix = null;
+		exlAPACKMatrixOperationsWrapperTemp = null;
+		exlAPACKMatrixOperationsWrapperSummary = null;
+		expCache = new MatrixExponentialCache();
+		expTable = null;
+		functionIndicator = null;
+		summaryFromEigenbasis = p.summaryFromEigenbasis;
+		sparseRateMatrix = null;
+		stateIndex = null;
+		sparseRequested = p.sparseRequested;
+		ratePlan = null;
+		rateParameters = null;
+		eigenCache = (p.eigenCache == null) ? null : new EigenDecompositionCache(p.eigenCache.getDirectory());
+		loadedParameters = null;
+		statePriors = null;
+		parentWeights = null;
 		childPS = null;
 	}
 
@@ -72,6 +155,19 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 		transRateMatrix = null;
 		exlAPACKMatrixOperationsWrapperTemp = null;
 		exlAPACKMatrixOperationsWrapperSummary = null;
+		expCache = new MatrixExponentialCache();
+		expTable = null;
+		functionIndicator = null;
+		summaryFromEigenbasis = true;
+		sparseRateMatrix = null;
+		stateIndex = null;
+		sparseRequested = false;
+		ratePlan = null;
+		rateParameters = null;
+		eigenCache = null;
+		loadedParameters = null;
+		statePriors = null;
+		parentWeights = null;
 		childPS = null;
 		matrixRows = new Vector<Vector<Parameter>>();
 
@@ -752,83 +848,73 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 	// Full version of power set
 	// This function builds the rate transition matrix for
 	// the Markov chain.
+	// The layout of Q is compiled once per state index (see
+	// RateMatrixPlan); each call only reads the current parameters
+	// and sums them into place.
 	// If this is changed, also change precomputePhiGradient in ProbabilisticReconciledPhylogenyObject
 	public void buildMarkovTransitionRateMatrix() {
-		ProteinFunctionMarkovState parent = new ProteinFunctionMarkovState(rows, maxFunctions);
-		ProteinFunctionMarkovState child  = new ProteinFunctionMarkovState(rows, maxFunctions);
-		System.out.println("Parent power set size: " + parent.powerSetSize());
-		System.out.println("Child power set size: " + child.powerSetSize());
-
-		if (transRateMatrix == null)
-			transRateMatrix = new LAPACKMatrixOperationsWrapper(parent.powerSetSize(), child.powerSetSize());
-
-		double sum = 0;
-		double prod = 1;
-		int count = 1;
-
-		while (child.hasNext()) {
-			child.getNextNonZeros();
-			prod = 1;
-
-			if (child.getCurrentSum() == 1) {
-				for (int i = 0; i < child.length(); i++) {
-					if (child.elementAt(i) == 1)
-						prod *= getAlpha(i);
-				}
-			}
-			else {
-				prod = 0;
-			}
+		ProteinFunctionStateIndex index = getStateIndex();
+		int S = index.size();
+		System.out.println("Parent power set size: " + S);
+		System.out.println("Child power set size: " + S);
+
+		// exponentials of the old rate matrix are no longer valid
+		expCache.clear();
+		expTable = null;
+		functionIndicator = null;
+		parentWeights = null;
+		exlAPACKMatrixOperationsWrapperTemp = null;
+		exlAPACKMatrixOperationsWrapperSummary = null;
+		currentScaling = 0.0;
 
-			transRateMatrix.set(0, count++, prod);
-			sum += prod;
-		}
-
-		transRateMatrix.set(0, 0, -sum); // so that row sums to 0
-
-		int childCount = 0;
-		int parentCount = 1;
-		child.Reset();
-		double oneSum = 0.0;
-
-		while (parent.hasNext()) {
-			parent.getNextNonZeros();
-			sum = 0;
-			childCount = 0;
-			child.Reset();
-
-			while (child.hasNext()) {
-				child.getNext();
-				//child.printPowerSet();
-				oneSum = 0;
-				int diffIndex = parent.offByOne(child);
-
-				if (diffIndex != -1 && diffIndex != parent.length()) {
-					for (int i = 0; i < parent.length(); i++) {
-						if (parent.elementAt(i) == 1) {
-							for (int j = 0; j < child.length(); j++) {
-								if (i == j && child.elementAt(j) == 0)
-									oneSum += getDelta(i, i);
-								else
-									if (i != j && child.elementAt(j) == 1
-									    && parent.elementAt(j) == 0) {
-										oneSum += getDelta(i, j);
-										oneSum += getAlpha(j);
-									}
-							}
-						}
-					}
-				}
+		boolean compiled = false;
+
+		if (ratePlan == null || ratePlan.getStateIndex() != index) {
+			ratePlan = new RateMatrixPlan(index);
+			rateParameters = new double[ratePlan.parameterCount()];
+			compiled = true;
+		}
 
-				if (parentCount != childCount)
-					sum += oneSum;
+		for (int i = 0; i < rows; i++) {
+			for (int j = 0; j < rows; j++)
+				rateParameters[ratePlan.deltaIndex(i, j)] = getDelta(i, j);
 
-				transRateMatrix.set(parentCount, childCount++, oneSum);
+			rateParameters[ratePlan.alphaIndex(i)] = getAlpha(i);
+		}
+
+		if (loadedParameters == null || loadedParameters.length != rateParameters.length)
+			loadedParameters = rateParameters.clone();
+
+		ratePlan.assemble(rateParameters);
+
+		if (sparseRequested || S > maxDenseStates) {
+			if (compiled || sparseRateMatrix == null) {
+				System.out.println("Using sparse rate matrix for " + S + " states");
+				System.out.println("Rate matrix has " + ratePlan.nonZeros() + " nonzero entries");
+				// shares its arrays with the plan, so later builds
+				// update it in place
+				sparseRateMatrix = new SparseRateMatrix(S, ratePlan.rowStart, ratePlan.columns,
+				                                        ratePlan.values);
 			}
+			else
+				sparseRateMatrix.updateRates();
+
+			transRateMatrix = null;
+			return;
+		}
+
+		sparseRateMatrix = null;
+
+		// entries off the pattern stay 0 between builds with the same plan
+		if (transRateMatrix == null || transRateMatrix.rows != S)
+			transRateMatrix = new LAPACKMatrixOperationsWrapper(S, S);
+		else
+			if (compiled)
+				transRateMatrix.zero();
 
-			transRateMatrix.set(parentCount, parentCount, -sum); //ensure rows sum to 0
-			//System.out.println("Setting: "+parentCount+","+parentCount+" to "+(-sum));
-			parentCount++;
+		for (int p = 0; p < S; p++) {
+			for (int k = ratePlan.rowStart[p]; k < ratePlan.rowStart[p + 1]; k++)
+				transRateMatrix.set(p, ratePlan.columns[k], ratePlan.values[k]);
 		}
 
 		//printOutMatrix();
@@ -839,6 +925,11 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 		//transRateMatrix.print();
 		//transRateMatrix.sumRows();
 		//System.out.println("Printing matrix exp (1.0):");
+		// once EM has moved the parameters, Q is never seen again, so
+		// it is looked up but not stored
+		if (eigenCache != null)
+			eigenCache.decompose(transRateMatrix, Arrays.equals(rateParameters, loadedParameters));
+
 		computeMatrixExp(1.0, false);
 		//exlAPACKMatrixOperationsWrapperTemp.print();
 		//computeMatrixExp(0.05, false);
@@ -846,40 +937,378 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 		//exlAPACKMatrixOperationsWrapperTemp.print();
 		//exlAPACKMatrixOperationsWrapperSummary.print();
 		exlAPACKMatrixOperationsWrapperTemp = null;
+		exlAPACKMatrixOperationsWrapperSummary = null;
 		currentScaling = 0.0;
-		summaryNotCurrent = true;
+	}
+
+	// The state index for the current number of functions and
+	// truncation, rebuilt if either has changed.
+	public ProteinFunctionStateIndex getStateIndex() {
+		if (stateIndex == null || stateIndex.numFunctions() != rows
+		    || stateIndex.maxFunctions() != maxFunctions)
+			stateIndex = new ProteinFunctionStateIndex(rows, maxFunctions);
+
+		return stateIndex;
+	}
+
+	private boolean rateMatrixBuilt() {
+		return transRateMatrix != null || sparseRateMatrix != null;
+	}
+
+	// Keep eigendecompositions of Q in this directory between runs
+	// (null to turn this off)
+	public void setEigenCacheDirectory(String dir) {
+		eigenCache = (dir == null) ? null : new EigenDecompositionCache(dir);
+	}
+
+	public EigenDecompositionCache getEigenCache() {
+		return eigenCache;
+	}
+
+	public void setSparse(boolean b) {
+		sparseRequested = b;
+	}
+
+	public boolean isSparse() {
+		return sparseRateMatrix != null;
 	}
 
 	// Takes power set indices i and j
 	// and returns element of Q
 	public double getQElement(int i, int j) {
-		if (transRateMatrix == null)
+		if (!rateMatrixBuilt())
 			buildMarkovTransitionRateMatrix();
 
 		//System.out.println("In getQElement");
+		if (sparseRateMatrix != null)
+			return sparseRateMatrix.get(i, j);
+
 		return transRateMatrix.get(i, j);
 	}
 
 	// put into matrix that holds parent ps index, child index
 	// and normalize (for getting rid of 00 state)
+	// Exponentials (and their summaries) come from the precomputed
+	// table if there is one, else from a bounded cache keyed by the
+	// scaling, so that revisiting a branch length does not redo the
+	// matrix products.
 	public void computeMatrixExp(double scale, boolean summary) {
-		if (currentScaling != scale) {
-			//Date d = new Date();
-			//long time1 = d.getTime();
-			exlAPACKMatrixOperationsWrapperTemp = transRateMatrix.matrixExponential(scale);
-			//d = new Date();
-			//long time2 = d.getTime();
-			//System.out.println("Time for matrix exponential: "+(time2-time1));
-			//System.out.println("Scaling: "+scale+", "+currentScaling);
-			summaryNotCurrent = true;
-			currentScaling = scale;
-		}
-
-		if (!summary ||
-		    (currentScaling == scale && !summaryNotCurrent))
-			return;
+		MatrixExponentialCache.Entry e = null;
+
+		if (expTable != null) {
+			e = expTable.get(Double.valueOf(scale));
+
+			// table entries hold only the summaries
+			if (e != null && (summary ? e.summary : e.full) == null)
+				e = null;
+		}
+
+		if (e == null) {
+			e = expCache.get(scale);
+
+			if (e == null)
+				e = expCache.put(scale, null);
+
+			// summaries don't need the full exponential
+			if (summary && e.summary == null) {
+				if (summaryFromEigenbasis || sparseRateMatrix != null)
+					expCache.setSummary(e, computeSummaryDirect(scale, null));
+				else {
+					if (e.full == null)
+						expCache.setFull(e, computeFullMatrixExp(scale));
+
+					expCache.setSummary(e, computeSummary(e.full));
+				}
+			}
+
+			if (!summary && e.full == null) {
+				//Date d = new Date();
+				//long time1 = d.getTime();
+				expCache.setFull(e, computeFullMatrixExp(scale));
+				//d = new Date();
+				//long time2 = d.getTime();
+				//System.out.println("Time for matrix exponential: "+(time2-time1));
+				//System.out.println("Scaling: "+scale+", "+currentScaling);
+			}
+		}
+
+		exlAPACKMatrixOperationsWrapperTemp = e.full;
+		exlAPACKMatrixOperationsWrapperSummary = e.summary;
+		currentScaling = scale;
+	}
+
+	/**
+	 * Computes the summary and parent summary for each of the given
+	 * scalings (rate times branch length) on the pool, and keeps them
+	 * in a read-only table used by computeMatrixExp until the rate
+	 * matrix is rebuilt. Every distinct scaling is computed, whatever
+	 * the cache capacity: the entries are only S x 3F, and a scaling
+	 * left out would be computed later under the lock, one at a time.
+	 * The S x S exponentials themselves are not formed.
+	 */
+	public void precomputeMatrixExps(Collection<Double> scalings, ForkJoinPool pool) {
+		if (!rateMatrixBuilt())
+			buildMarkovTransitionRateMatrix();
+
+		// shared state is set up here, before the tasks run
+		if (transRateMatrix != null)
+			transRateMatrix.eigenDecompose();
+
+		buildFunctionIndicator();
+
+		Vector<Double> todo = new Vector<Double>();
+		HashSet<Double> seen = new HashSet<Double>();
+
+		for (Double t : scalings) {
+			if (seen.add(t))
+				todo.add(t);
+		}
+
+		MatrixExponentialCache.Entry[] computed = new MatrixExponentialCache.Entry[todo.size()];
+		pool.invoke(new MatrixExpTask(todo, computed, 0, todo.size()));
+		HashMap<Double, MatrixExponentialCache.Entry> table =
+		    new HashMap<Double, MatrixExponentialCache.Entry>();
+
+		for (int i = 0; i < computed.length; i++)
+			table.put(todo.elementAt(i), computed[i]);
+
+		expTable = Collections.unmodifiableMap(table);
+		exlAPACKMatrixOperationsWrapperTemp = null;
+		exlAPACKMatrixOperationsWrapperSummary = null;
+	}
+
+	// Splits the scalings in half until there is one left, which it
+	// computes with its own scratch buffers.
+	private class MatrixExpTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private Vector<Double> scalings;
+		private MatrixExponentialCache.Entry[] computed;
+		private int from;
+		private int to;
+
+		public MatrixExpTask(Vector<Double> s, MatrixExponentialCache.Entry[] c, int f, int t) {
+			scalings = s;
+			computed = c;
+			from = f;
+			to = t;
+		}
+
+		protected void compute() {
+			if (to - from > 1) {
+				int mid = (from + to) / 2;
+				invokeAll(new MatrixExpTask(scalings, computed, from, mid),
+				          new MatrixExpTask(scalings, computed, mid, to));
+				return;
+			}
+
+			if (to == from)
+				return;
 
+			int S = getSizeExpMatrix();
+			double t = scalings.elementAt(from).doubleValue();
+			MatrixExponentialCache.Entry e = new MatrixExponentialCache.Entry(t, null);
+
+			if (sparseRateMatrix != null)
+				e.summary = computeSummaryDirect(t, null);
+			else
+				if (summaryFromEigenbasis)
+					e.summary = computeSummaryDirect(t,
+					            new LAPACKMatrixOperationsWrapper(S, matrixRows.size()));
+				else
+					e.summary = computeSummary(transRateMatrix.matrixExponential(t,
+					            new LAPACKMatrixOperationsWrapper(S, S), new LAPACKMatrixOperationsWrapper(S, S)));
+
+			if (parentWeights != null)
+				e.parentSummary = computeParentSummary(t,
+				                  new LAPACKMatrixOperationsWrapper(S, parentWeights.cols));
+
+			computed[from] = e;
+		}
+	}
+
+	// Sums the columns of the exponential over the sets containing
+	// each function: rows are parent ps index, columns child index.
+	// Done as exp(Qt) B; the product only adds the columns of the
+	// sets containing the function, in set order.
+	private LAPACKMatrixOperationsWrapper computeSummary(LAPACKMatrixOperationsWrapper expMatrix) {
 		//System.out.println("recomputing summary");
+		buildFunctionIndicator();
+		LAPACKMatrixOperationsWrapper summaryMatrix =
+		    new LAPACKMatrixOperationsWrapper(expMatrix.rows, functionIndicator.cols);
+		expMatrix.matrixMultiplication(expMatrix, functionIndicator, summaryMatrix);
+		//summaryMatrix.print();
+		return summaryMatrix;
+	}
+
+	// The summary is exp(Qt) B, where B(c,j) = 1 if state c has
+	// function j; this is Z exp(Dt) (Zinv B), and Zinv B is kept by
+	// the rate matrix, so the S x S exponential is never formed.
+	// scratch may be null, in which case the rate matrix's own is used.
+	// With a sparse Q, each column is computed as an exp(Qt) v product.
+	private LAPACKMatrixOperationsWrapper computeSummaryDirect(double scale,
+	        LAPACKMatrixOperationsWrapper scratch) {
+		buildFunctionIndicator();
+		LAPACKMatrixOperationsWrapper out =
+		    new LAPACKMatrixOperationsWrapper(getSizeExpMatrix(), functionIndicator.cols);
+
+		if (sparseRateMatrix != null)
+			return sparseRateMatrix.expTimes(scale, functionIndicator, out, false);
+		else
+			if (scratch == null)
+				return transRateMatrix.matrixExponentialTimes(scale, functionIndicator, out);
+			else
+				return transRateMatrix.matrixExponentialTimes(scale, functionIndicator, out, scratch);
+	}
+
+	// With a sparse Q this is S products exp(Qt) e_i, so only for
+	// callers that really need the whole matrix.
+	private LAPACKMatrixOperationsWrapper computeFullMatrixExp(double scale) {
+		if (sparseRateMatrix == null)
+			return transRateMatrix.matrixExponential(scale);
+
+		int S = getSizeExpMatrix();
+		LAPACKMatrixOperationsWrapper identity = new LAPACKMatrixOperationsWrapper(S, S);
+
+		for (int i = 0; i < S; i++)
+			identity.set(i, i, 1.0);
+
+		return sparseRateMatrix.expTimes(scale, identity, new LAPACKMatrixOperationsWrapper(S, S), false);
+	}
+
+	/**
+	 * Sets the prior of each state (by power set index) for the upward
+	 * messages; call after the rate matrix is built and before
+	 * precomputeMatrixExps. Column j of the weights W is the prior of
+	 * the states with function j and column F+j of those without it,
+	 * so row c of exp(Qt)^T W gives the weight of the parents with and
+	 * without each function for child state c.
+	 */
+	public void setStatePriors(double[] priors) {
+		if (parentWeights != null && Arrays.equals(priors, statePriors))
+			return;
+
+		int F = matrixRows.size();
+		int S = priors.length;
+		buildFunctionIndicator();
+		LAPACKMatrixOperationsWrapper W = new LAPACKMatrixOperationsWrapper(S, 2 * F);
+
+		for (int p = 0; p < S; p++) {
+			for (int j = 0; j < F; j++) {
+				if (functionIndicator.matrix[j*S + p] == 1.0)
+					W.matrix[j*S + p] = priors[p];
+				else
+					W.matrix[(F + j)*S + p] = priors[p];
+			}
+		}
+
+		// parent summaries for the old priors are no longer valid
+		if (parentWeights != null) {
+			expCache.clear();
+			expTable = null;
+		}
+
+		statePriors = priors.clone();
+		parentWeights = W;
+	}
+
+	// exp(Qt)^T W (see setStatePriors) with each row normalized, so
+	// that (c, j) is the probability that the parent has function j
+	// given child state c and (c, F+j) that it does not; S x 2F
+	public LAPACKMatrixOperationsWrapper getParentSummary(double t) {
+		MatrixExponentialCache.Entry e = null;
+
+		if (expTable != null)
+			e = expTable.get(Double.valueOf(t));
+
+		if (e != null && e.parentSummary != null)
+			return e.parentSummary;
+
+		synchronized (this) {
+			e = expCache.get(t);
+
+			if (e == null)
+				e = expCache.put(t, null);
+
+			if (e.parentSummary == null)
+				expCache.setParentSummary(e, computeParentSummary(t, null));
+
+			return e.parentSummary;
+		}
+	}
+
+	// exp(Qt), or its S x F summary. Unlike getExpProb these don't
+	// touch the current scaling, so they can be called from several
+	// threads during message passing: precomputed exponentials are
+	// read from the table without locking, anything else is computed
+	// under a lock.
+	public LAPACKMatrixOperationsWrapper getExpMatrix(double t) {
+		return getExpMatrix(t, false);
+	}
+
+	public LAPACKMatrixOperationsWrapper getExpSummaryMatrix(double t) {
+		return getExpMatrix(t, true);
+	}
+
+	private LAPACKMatrixOperationsWrapper getExpMatrix(double t, boolean summary) {
+		if (expTable != null) {
+			MatrixExponentialCache.Entry e = expTable.get(Double.valueOf(t));
+
+			if (e != null && (summary ? e.summary : e.full) != null)
+				return summary ? e.summary : e.full;
+		}
+
+		synchronized (this) {
+			if (!rateMatrixBuilt())
+				buildMarkovTransitionRateMatrix();
+
+			computeMatrixExp(t, summary);
+			return summary ? exlAPACKMatrixOperationsWrapperSummary : exlAPACKMatrixOperationsWrapperTemp;
+		}
+	}
+
+	// An entry of one of the matrices above, as getExpProb returns it
+	public static double getExpProb(LAPACKMatrixOperationsWrapper m, int r, int c) {
+		double p = m.get(r, c);
+
+		if (p > 0)
+			return p;
+		else
+			return probEpsilon;
+	}
+
+	// exp(Qt)^T W is Zinv^T exp(Dt) (Z^T W), and Z^T W is kept by the
+	// rate matrix as Zinv B is for the summaries. scratch is S x 2F,
+	// or null to have one allocated.
+	private LAPACKMatrixOperationsWrapper computeParentSummary(double t,
+	        LAPACKMatrixOperationsWrapper scratch) {
+		LAPACKMatrixOperationsWrapper out =
+		    new LAPACKMatrixOperationsWrapper(parentWeights.rows, parentWeights.cols);
+
+		if (sparseRateMatrix != null)
+			sparseRateMatrix.expTimes(t, parentWeights, out, true);
+		else
+			transRateMatrix.matrixExponentialTransposeTimes(t, parentWeights, out, scratch);
+
+		int S = out.rows;
+		int F = out.cols / 2;
+
+		for (int c = 0; c < S; c++) {
+			for (int j = 0; j < F; j++) {
+				double with = out.matrix[j*S + c];
+				double without = out.matrix[(F + j)*S + c];
+				out.matrix[j*S + c] = with / (with + without);
+				out.matrix[(F + j)*S + c] = without / (with + without);
+			}
+		}
+
+		return out;
+	}
+
+	// B(c,j) = 1 if the state with power set index c has function j
+	private void buildFunctionIndicator() {
+		if (functionIndicator != null)
+			return;
+
 		int functions = matrixRows.size();
 
 		if (childPS == null)
@@ -887,38 +1316,28 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 		else
 			childPS.Reset();
 
-		if (exlAPACKMatrixOperationsWrapperSummary == null)
-			exlAPACKMatrixOperationsWrapperSummary = new LAPACKMatrixOperationsWrapper(transRateMatrix.rows, functions);
-		else
-			exlAPACKMatrixOperationsWrapperSummary.zero();
-
-		//exlAPACKMatrixOperationsWrapperTemp.print();
+		LAPACKMatrixOperationsWrapper B = new LAPACKMatrixOperationsWrapper(getSizeExpMatrix(), functions);
 		int setIndex = 0;
 
 		while (childPS.hasNext()) {
 			childPS.getNextNonZeros();
 			setIndex++;
 
-			//childPS.getNext();
 			for (int j = 0; j < childPS.length(); j++) {
-				if (childPS.elementAt(j) == 1) {
-					for (int i = 0; i < exlAPACKMatrixOperationsWrapperTemp.rows; i++) {
-						//System.out.println("in computeMatrixExp");
-						exlAPACKMatrixOperationsWrapperSummary.add(i, j,
-						                     exlAPACKMatrixOperationsWrapperTemp.get(i, setIndex));
-						//System.out.println("Summarizing "+i+", "+setIndex
-						//		   +" to "+i+","+j
-						//		   +" and prob "
-						//		   +exlAPACKMatrixOperationsWrapperTemp.get(i,setIndex));
-					}
-
-					//exlAPACKMatrixOperationsWrapperSummary.print();
-				}
+				if (childPS.elementAt(j) == 1)
+					B.set(setIndex, j, 1.0);
 			}
 		}
 
-		//exlAPACKMatrixOperationsWrapperSummary.print();
-		summaryNotCurrent = false;
+		functionIndicator = B;
+	}
+
+	public void setSummaryFromEigenbasis(boolean b) {
+		summaryFromEigenbasis = b;
+	}
+
+	public MatrixExponentialCache getExpCache() {
+		return expCache;
 	}
 
 	public LAPACKMatrixOperationsWrapper getMatrixExp(double rate, double distance) {
@@ -926,10 +1345,14 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 		return exlAPACKMatrixOperationsWrapperTemp;
 	}
 
+	// with a sparse Q this is a dense copy
 	public LAPACKMatrixOperationsWrapper getQMatrix() {
-		if (transRateMatrix == null)
+		if (!rateMatrixBuilt())
 			buildMarkovTransitionRateMatrix();
 
+		if (sparseRateMatrix != null)
+			return sparseRateMatrix.toDense();
+
 		return transRateMatrix;
 	}
 
@@ -950,7 +1373,7 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 
 	// grab appropriate
 	public double getExpProb(int parentPSIndex, int childPSIndex, double t) {
-		if (transRateMatrix == null)
+		if (!rateMatrixBuilt())
 			buildMarkovTransitionRateMatrix();
 
 		//Date d = new Date();
@@ -969,11 +1392,37 @@ public class GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject e
 			return probEpsilon;
 	}
 
+	// max row sum norm of Q
+	public double getQNorm() {
+		if (!rateMatrixBuilt())
+			buildMarkovTransitionRateMatrix();
+
+		if (sparseRateMatrix != null)
+			return sparseRateMatrix.normInf();
+
+		double norm = 0;
+
+		for (int i = 0; i < transRateMatrix.rows; i++) {
+			double sum = 0;
+
+			for (int j = 0; j < transRateMatrix.cols; j++)
+				sum += Math.abs(transRateMatrix.get(i, j));
+
+			if (sum > norm)
+				norm = sum;
+		}
+
+		return norm;
+	}
+
 	public int getSizeExpMatrix() {
 		if (transRateMatrix != null)
 			return transRateMatrix.rows;
 		else
-			return 0;
+			if (sparseRateMatrix != null)
+				return sparseRateMatrix.rows;
+			else
+				return 0;
 	}
 
 }
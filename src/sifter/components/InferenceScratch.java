@@ -0,0 +1,130 @@
+/*
+ * Work buffers for message passing and the M step, reused from node to
+ * node and from one EM iteration to the next, so the kernels do not
+ * allocate. A task takes an arena with acquire and gives it back with
+ * release; there are only ever as many arenas as tasks that have run
+ * at once. Buffers of length F (functions) or S (states) are exactly
+ * that long; the per-child buffers only grow.
+ *
+ * The arenas and the arrays allocated for them are counted, so that a
+ * run can check these stay flat across iterations.
+ */
+package sifter.components;
+
+import java.util.Vector;
+import java.util.concurrent.atomic.AtomicLong;
+
+public class InferenceScratch {
+
+	private static Vector<InferenceScratch> free = new Vector<InferenceScratch>();
+	private static AtomicLong arenas = new AtomicLong();
+	private static AtomicLong allocations = new AtomicLong();
+
+	private int functions;
+	private int states;
+	private int children;
+
+	// length S: likelihood of each child state
+	public double[] weights;
+	// length F
+	public double[] childTerm;
+	public double[] gamma;
+	public double[] gammaNot;
+	public double[] gammaSiblings;
+	public double[] delta;
+	public double[] notDelta;
+	public double[] present;
+	public double[] absent;
+	// length 2F: edge factors with, then without, each function
+	public double[] sums;
+	// length F + 1
+	public int[] neighbours;
+	// normalisers divided out of gamma, scale * 2^scaleExponent
+	public double scale;
+	public int scaleExponent;
+	// per child of a node, 2F each (see deltasForChildren)
+	public double[] factors;
+	public boolean[] informative;
+	// per child of a node plus one, 2F each
+	public double[] prefix;
+	public double[] suffix;
+
+	private InferenceScratch() {
+		functions = -1;
+		states = -1;
+		children = -1;
+		arenas.incrementAndGet();
+	}
+
+	// An arena sized for F functions and S states, not in use by
+	// anyone else until it is released
+	public static InferenceScratch acquire(int F, int S) {
+		InferenceScratch s = null;
+
+		synchronized (free) {
+			if (free.size() > 0)
+				s = free.remove(free.size() - 1);
+		}
+
+		if (s == null)
+			s = new InferenceScratch();
+
+		s.ensure(F, S);
+		return s;
+	}
+
+	public static void release(InferenceScratch s) {
+		free.add(s);
+	}
+
+	// Sizes the F and S buffers, reallocating only if they change
+	public void ensure(int F, int S) {
+		if (F != functions) {
+			functions = F;
+			childTerm = new double[F];
+			gamma = new double[F];
+			gammaNot = new double[F];
+			gammaSiblings = new double[F];
+			delta = new double[F];
+			notDelta = new double[F];
+			present = new double[F];
+			absent = new double[F];
+			sums = new double[2 * F];
+			neighbours = new int[F + 1];
+			allocations.addAndGet(10);
+			children = -1; // per-child buffers depend on F too
+		}
+
+		if (S != states) {
+			states = S;
+			weights = new double[S];
+			allocations.incrementAndGet();
+		}
+	}
+
+	// Makes room for a node with k children; call after ensure
+	public void ensureChildren(int k) {
+		if (k <= children)
+			return;
+
+		children = k;
+		factors = new double[k * 2 * functions];
+		informative = new boolean[k];
+		prefix = new double[(k + 1) * 2 * functions];
+		suffix = new double[(k + 1) * 2 * functions];
+		allocations.addAndGet(4);
+	}
+
+	public static long getArenas() {
+		return arenas.get();
+	}
+
+	public static long getAllocations() {
+		return allocations.get();
+	}
+
+	public static String report() {
+		return "Inference scratch: " + getArenas() + " arenas, "
+		       + getAllocations() + " arrays allocated";
+	}
+}
@@ -7,13 +7,17 @@
 package sifter.components;
 
 //import sifter_components.LAPACKVectorOperationsWrapper;
+import java.util.Arrays;
+
 import org.netlib.util.*;
 import org.netlib.lapack.Dgetrf;
 import org.netlib.lapack.Dgetri;
 //import org.netlib.lapack.Dsyevd;
 //import org.netlib.lapack.Dgees;
 import org.netlib.lapack.Dgeev;
+import org.netlib.lapack.Dgesv;
 import org.netlib.blas.Dgemm;
+import org.netlib.blas.Dgemv;
 
 
 public class LAPACKMatrixOperationsWrapper {
@@ -22,9 +26,31 @@ public class LAPACKMatrixOperationsWrapper {
 	public int cols;
 	public boolean isDiagonal;
 	private LAPACKMatrixOperationsWrapper ZStore;
-	private LAPACKMatrixOperationsWrapper DStore;
+	// scratch buffer for Z exp(D t), reused between calls
+	private LAPACKMatrixOperationsWrapper ZScaledStore;
+	// Zinv B for the last B passed to matrixExponentialTimes
+	private LAPACKMatrixOperationsWrapper BStore;
+	private LAPACKMatrixOperationsWrapper ZinvBStore;
+	private LAPACKMatrixOperationsWrapper ZinvBScaledStore;
+	// Z^T W for the last W passed to matrixExponentialTransposeTimes
+	private LAPACKMatrixOperationsWrapper WStore;
+	private LAPACKMatrixOperationsWrapper ZtWStore;
 	private LAPACKMatrixOperationsWrapper ZinvStore;
 	private LAPACKVectorOperationsWrapper dStore;
+	// set by eigenDecompose when Z exp(D t) Zinv can't be trusted
+	// (complex eigenvalues, or Z too ill-conditioned to invert), in
+	// which case exponentials are computed by padeExponential instead
+	private boolean padeStore;
+	// largest |imaginary part| and largest modulus of the eigenvalues
+	// from jlapackDsyevr
+	private double eigenImaginary;
+	private double eigenModulus;
+
+	// condition number of Z above which the eigenbasis is not used
+	private static double maxEigenCondition = 1.0E8;
+	// imaginary parts up to this times the largest |eigenvalue| are
+	// rounding in Dgeev, and the eigenvalue is taken to be real
+	private static final double IMAGINARY_TOLERANCE = 1.0E-12;
 
 	////////////////////////////////////////////
 	// Constructors, setters
@@ -47,7 +73,6 @@ public class LAPACKMatrixOperationsWrapper {
 		cols = v.length();
 		isDiagonal = true;
 		ZStore = null;
-		DStore = null;
 		dStore = null;
 	}
 
@@ -81,7 +106,6 @@ public class LAPACKMatrixOperationsWrapper {
 		}
 
 		ZStore = null;
-		DStore = null;
 		dStore = null;
 	}
 
@@ -96,7 +120,6 @@ public class LAPACKMatrixOperationsWrapper {
 		cols = c;
 		isDiagonal = true;
 		ZStore = null;
-		DStore = null;
 		dStore = null;
 	}
 
@@ -122,7 +145,6 @@ public class LAPACKMatrixOperationsWrapper {
 		//    checkDiagonal();
 		//	}
 		ZStore = null;
-		DStore = null;
 		dStore = null;
 	}
 
@@ -149,7 +171,6 @@ public class LAPACKMatrixOperationsWrapper {
 		//    checkDiagonal();
 		//}
 		ZStore = null;
-		DStore = null;
 		dStore = null;
 	}
 
@@ -308,6 +329,14 @@ public class LAPACKMatrixOperationsWrapper {
 		//VS.print();
 		outW.vector = WR.vector;
 		Z.matrix = VS.matrix;
+		// Z and outW only hold the real parts
+		eigenImaginary = 0;
+		eigenModulus = 0;
+
+		for (int i = 0; i < N; i++) {
+			eigenImaginary = Math.max(eigenImaginary, Math.abs(WI.matrix[i]));
+			eigenModulus = Math.max(eigenModulus, Math.hypot(WR.vector[i], WI.matrix[i]));
+		}
 
 		if (!Assert(info.val == 0,
 		            "dsyevd_ actual call returned with error " + info))
@@ -346,30 +375,458 @@ public class LAPACKMatrixOperationsWrapper {
 
 
 	public LAPACKMatrixOperationsWrapper matrixExponential(double t) {
-		LAPACKMatrixOperationsWrapper mex;
+		return matrixExponential(t, new LAPACKMatrixOperationsWrapper(rows, cols));
+	}
 
-		// Get eigenvalues (d) and eigenvector matrix (Z)
-		// If these are already computed, don't bother
+	// Computes Z exp(D t) Zinv into mex, which must be rows x cols.
+	// Z exp(D t) only scales the columns of Z, so it is done in
+	// place in a reused buffer rather than as a matrix product.
+	public LAPACKMatrixOperationsWrapper matrixExponential(double t, LAPACKMatrixOperationsWrapper mex) {
+		eigenDecompose();
+
+		if (ZScaledStore == null || ZScaledStore.rows != ZStore.rows)
+			ZScaledStore = new LAPACKMatrixOperationsWrapper(ZStore.rows, ZStore.cols);
+
+		return matrixExponential(t, mex, ZScaledStore);
+	}
+
+	// As above, with the caller's own rows x cols scratch buffer, so
+	// that several threads can compute exponentials of one matrix.
+	public LAPACKMatrixOperationsWrapper matrixExponential(double t, LAPACKMatrixOperationsWrapper mex,
+	        LAPACKMatrixOperationsWrapper scratch) {
+		eigenDecompose();
+
+		if (padeStore) {
+			padeExponentialOrExit(t, mex.matrix);
+			return mex;
+		}
+
+		//System.out.println("Printing Z");
+		//ZStore.print();
+		//System.out.println("Printing Zinv");
+		//ZinvStore.print();
+
+		// Scale column k of Z by exp(d_k t)
+		int N = ZStore.rows;
+
+		for (int k = 0; k < ZStore.cols; k++) {
+			double e = Math.exp(dStore.vector[k] * t);
+			int offset = k * N;
+
+			for (int i = 0; i < N; i++) {
+				scratch.matrix[offset + i] = ZStore.matrix[offset + i] * e;
+			}
+		}
+
+		// Compute (Z exp(D t)) Zinv using jlapack functions
+		matrixMultiplication(scratch, ZinvStore, mex);
+
+		return mex;
+	}
+
+	// Computes Z exp(D t) Zinv B into out (rows x B.cols) without forming
+	// the full exponential. Zinv B is computed once and kept until this
+	// matrix or B changes, so each call is O(rows^2 B.cols).
+	public LAPACKMatrixOperationsWrapper matrixExponentialTimes(double t, LAPACKMatrixOperationsWrapper B,
+	        LAPACKMatrixOperationsWrapper out) {
+		if (!isEigenDecompositionUsable())
+			return matrixExponentialTimes(t, B, out, null);
+
+		LAPACKMatrixOperationsWrapper ZinvB = getZinvB(B);
+
+		if (ZinvBScaledStore == null || ZinvBScaledStore.cols != ZinvB.cols)
+			ZinvBScaledStore = new LAPACKMatrixOperationsWrapper(ZinvB.rows, ZinvB.cols);
+
+		return matrixExponentialTimes(t, B, out, ZinvBScaledStore);
+	}
+
+	// As above, with the caller's own rows x B.cols scratch buffer
+	public LAPACKMatrixOperationsWrapper matrixExponentialTimes(double t, LAPACKMatrixOperationsWrapper B,
+	        LAPACKMatrixOperationsWrapper out, LAPACKMatrixOperationsWrapper scratch) {
+		if (!isEigenDecompositionUsable()) {
+			double[] e = new double[rows * cols];
+			padeExponentialOrExit(t, e);
+			Dgemm.dgemm("n", "n", rows, B.cols, cols,
+			            1.0, e, 0, rows,
+			            B.matrix, 0, cols, 0.0,
+			            out.matrix, 0, rows);
+			return out;
+		}
+
+		LAPACKMatrixOperationsWrapper ZinvB = getZinvB(B);
+
+		// Scale row k of Zinv B by exp(d_k t)
+		int N = ZinvB.rows;
+
+		for (int k = 0; k < N; k++) {
+			double e = Math.exp(dStore.vector[k] * t);
+
+			for (int j = 0; j < ZinvB.cols; j++) {
+				scratch.matrix[j*N + k] = ZinvB.matrix[j*N + k] * e;
+			}
+		}
+
+		matrixMultiplication(ZStore, scratch, out);
+
+		return out;
+	}
+
+	// Computes exp(this t)^T W = Zinv^T exp(D t) Z^T W into out
+	// (cols x W.cols), again without forming the full exponential. Z^T W
+	// is kept as Zinv B is above. scratch is the caller's own
+	// rows x W.cols buffer, or null to allocate one.
+	public LAPACKMatrixOperationsWrapper matrixExponentialTransposeTimes(double t,
+	        LAPACKMatrixOperationsWrapper W, LAPACKMatrixOperationsWrapper out,
+	        LAPACKMatrixOperationsWrapper scratch) {
+		if (!isEigenDecompositionUsable()) {
+			double[] e = new double[rows * cols];
+			padeExponentialOrExit(t, e);
+			Dgemm.dgemm("t", "n", cols, W.cols, rows,
+			            1.0, e, 0, rows,
+			            W.matrix, 0, rows, 0.0,
+			            out.matrix, 0, cols);
+			return out;
+		}
+
+		LAPACKMatrixOperationsWrapper ZtW = getZtW(W);
+
+		if (scratch == null)
+			scratch = new LAPACKMatrixOperationsWrapper(ZtW.rows, ZtW.cols);
+
+		// Scale row k of Z^T W by exp(d_k t)
+		int N = ZtW.rows;
+
+		for (int k = 0; k < N; k++) {
+			double e = Math.exp(dStore.vector[k] * t);
+
+			for (int j = 0; j < ZtW.cols; j++) {
+				scratch.matrix[j*N + k] = ZtW.matrix[j*N + k] * e;
+			}
+		}
+
+		transposeMultiplication(ZinvStore, scratch, out);
+
+		return out;
+	}
+
+	private synchronized LAPACKMatrixOperationsWrapper getZtW(LAPACKMatrixOperationsWrapper W) {
+		eigenDecompose();
+
+		if (ZtWStore == null || WStore != W) {
+			LAPACKMatrixOperationsWrapper ZtW = new LAPACKMatrixOperationsWrapper(ZStore.cols, W.cols);
+			transposeMultiplication(ZStore, W, ZtW);
+			ZtWStore = ZtW;
+			WStore = W;
+		}
+
+		return ZtWStore;
+	}
+
+	private synchronized LAPACKMatrixOperationsWrapper getZinvB(LAPACKMatrixOperationsWrapper B) {
+		eigenDecompose();
+
+		if (ZinvBStore == null || BStore != B) {
+			ZinvBStore = matrixMultiplication(ZinvStore, B);
+			BStore = B;
+		}
+
+		return ZinvBStore;
+	}
+
+	// Get eigenvalues (d) and eigenvector matrix (Z)
+	// If these are already computed, don't bother
+	public synchronized void eigenDecompose() {
 		if (ZStore == null) {
 			//System.out.println("Recomputing ZStore "+matrix.length);
 			ZStore = new LAPACKMatrixOperationsWrapper(matrix);
-			DStore = new LAPACKMatrixOperationsWrapper(ZStore.rows, ZStore.cols);
 			dStore = new LAPACKVectorOperationsWrapper(rows);
 			jlapackDsyevr(ZStore, dStore);
 			ZinvStore = ZStore.matrixInverse();
+			ZinvBStore = null;
+			ZtWStore = null;
+			padeStore = false;
+			double imaginary = eigenImaginary;
+
+			if (ZinvStore == null) {
+				System.out.println("Eigenvectors are singular; using Pade approximant for matrix exponentials");
+				padeStore = true;
+			}
+			else
+				if (imaginary > IMAGINARY_TOLERANCE * eigenModulus) {
+					System.out.println("Rate matrix has complex eigenvalues (|Im| up to " + imaginary
+					                   + "); using Pade approximant for matrix exponentials");
+					padeStore = true;
+				}
+				else {
+					double condition = ZStore.norm1() * ZinvStore.norm1();
+
+					if (!(condition <= maxEigenCondition)) {
+						System.out.println("Eigenvectors have condition number " + condition
+						                   + "; using Pade approximant for matrix exponentials");
+						padeStore = true;
+					}
+				}
 		}
+	}
 
-		//System.out.println("Printing Z");
-		//ZStore.print();
-		//System.out.println("Printing Zinv");
-		//ZinvStore.print();
+	// false if exponentials are being computed by padeExponential
+	public synchronized boolean isEigenDecompositionUsable() {
+		eigenDecompose();
+		return !padeStore;
+	}
 
-		// Compute Z exp(D) Zinv using jlapack functions
-		DStore.expDiagonal(dStore.vector, t);
-		mex = matrixMultiplication(ZStore, DStore);
-		mex = matrixMultiplication(mex, ZinvStore);
+	public static void setMaxEigenCondition(double c) {
+		maxEigenCondition = c;
+	}
 
-		return mex;
+	public static double getMaxEigenCondition() {
+		return maxEigenCondition;
+	}
+
+	// max column sum norm
+	public double norm1() {
+		double norm = 0;
+
+		for (int j = 0; j < cols; j++) {
+			double sum = 0;
+
+			for (int i = 0; i < rows; i++)
+				sum += Math.abs(matrix[j*rows + i]);
+
+			if (sum > norm)
+				norm = sum;
+		}
+
+		return norm;
+	}
+
+	// Pade coefficients and the largest ||A||_1 each degree is
+	// accurate to double precision for (Higham, SIAM J. Matrix Anal.
+	// Appl. 26(4), 2005)
+	private static final int[] PADE_DEGREES = { 3, 5, 7, 9 };
+	private static final double[] PADE_THETA = { 1.495585217958292e-2, 2.539398330063230e-1,
+	                                             9.504178996162932e-1, 2.097847961257068e0 };
+	private static final double THETA_13 = 5.371920351148152e0;
+	private static final double[][] PADE_COEFFICIENTS = {
+		{ 120.0, 60.0, 12.0, 1.0 },
+		{ 30240.0, 15120.0, 3360.0, 420.0, 30.0, 1.0 },
+		{ 17297280.0, 8648640.0, 1995840.0, 277200.0, 25200.0, 1512.0, 56.0, 1.0 },
+		{ 17643225600.0, 8821612800.0, 2075673600.0, 302702400.0, 30270240.0,
+		  2162160.0, 110880.0, 3960.0, 90.0, 1.0 }
+	};
+	private static final double[] PADE_13 = {
+		64764752532480000.0, 32382376266240000.0, 7771770303897600.0,
+		1187353796428800.0, 129060195264000.0, 10559470521600.0, 670442572800.0,
+		33522128640.0, 1323241920.0, 40840800.0, 960960.0, 16380.0, 182.0, 1.0
+	};
+
+	// n x n work arrays padeExponential needs. They are allocated by
+	// each call: that is O(n^2) next to its O(n^3) products, and
+	// nothing of that size is kept once the call is done.
+	private static final int PADE_WORK = 7;
+
+	// Computes exp(this t) into mex by scaling and squaring with a
+	// Pade approximant r(A) = (V - U)^-1 (V + U), solving with an LU
+	// factorization rather than forming an inverse. Used when the
+	// eigendecomposition is unreliable; its work space is its own, so
+	// several threads can call it at once. Returns null if the
+	// approximant cannot be solved.
+	public LAPACKMatrixOperationsWrapper padeExponential(double t, LAPACKMatrixOperationsWrapper mex) {
+		if (padeExponential(t, mex.matrix))
+			return mex;
+
+		return null;
+	}
+
+	// As padeExponential, but there is no going on without the
+	// exponential, so a failure ends the run
+	private void padeExponentialOrExit(double t, double[] out) {
+		if (!padeExponential(t, out)) {
+			System.out.println("Error: could not compute the matrix exponential for scaling " + t);
+			System.exit(1);
+		}
+	}
+
+	private boolean padeExponential(double t, double[] out) {
+		int n = rows;
+		int nn = n * n;
+		double[][] work = new double[PADE_WORK][nn];
+		double[] A = work[0];
+
+		for (int i = 0; i < nn; i++)
+			A[i] = matrix[i] * t;
+
+		double norm = 0;
+
+		for (int j = 0; j < n; j++) {
+			double sum = 0;
+
+			for (int i = 0; i < n; i++)
+				sum += Math.abs(A[j*n + i]);
+
+			norm = Math.max(norm, sum);
+		}
+
+		double[] A2 = work[1];
+		double[] U = work[2];
+		double[] V = work[3];
+		double[] tmp = work[4];
+		int squarings = 0;
+		int degree = -1;
+
+		for (int m = 0; m < PADE_DEGREES.length; m++) {
+			if (norm <= PADE_THETA[m]) {
+				degree = m;
+				break;
+			}
+		}
+
+		if (degree < 0 && norm > THETA_13) {
+			squarings = (int)Math.ceil(Math.log(norm / THETA_13) / Math.log(2.0));
+			double s = Math.pow(2.0, -squarings);
+
+			for (int i = 0; i < nn; i++)
+				A[i] *= s;
+		}
+
+		multiply(A, A, A2, n);
+
+		if (degree >= 0) {
+			// V = sum b_2k A^2k, U = A sum b_2k+1 A^2k
+			double[] b = PADE_COEFFICIENTS[degree];
+			double[] power = work[5];
+			double[] next = work[6];
+			Arrays.fill(V, 0.0);
+			Arrays.fill(tmp, 0.0);
+			Arrays.fill(power, 0.0);
+
+			for (int i = 0; i < n; i++) {
+				power[i*n + i] = 1.0;
+			}
+
+			for (int k = 0; 2 * k < b.length; k++) {
+				if (k > 0) {
+					multiply(power, A2, next, n);
+					double[] swap = power;
+					power = next;
+					next = swap;
+				}
+
+				for (int i = 0; i < nn; i++) {
+					V[i] += b[2*k] * power[i];
+					tmp[i] += b[2*k + 1] * power[i];
+				}
+			}
+
+			multiply(A, tmp, U, n);
+		}
+		else {
+			double[] b = PADE_13;
+			double[] A4 = work[5];
+			double[] A6 = work[6];
+			multiply(A2, A2, A4, n);
+			multiply(A4, A2, A6, n);
+
+			// U = A (A6 (b13 A6 + b11 A4 + b9 A2) + b7 A6 + b5 A4 + b3 A2 + b1 I)
+			for (int i = 0; i < nn; i++)
+				tmp[i] = b[13] * A6[i] + b[11] * A4[i] + b[9] * A2[i];
+
+			multiply(A6, tmp, U, n);
+
+			for (int i = 0; i < nn; i++)
+				U[i] += b[7] * A6[i] + b[5] * A4[i] + b[3] * A2[i];
+
+			for (int i = 0; i < n; i++)
+				U[i*n + i] += b[1];
+
+			System.arraycopy(U, 0, tmp, 0, nn);
+			multiply(A, tmp, U, n);
+
+			// V = A6 (b12 A6 + b10 A4 + b8 A2) + b6 A6 + b4 A4 + b2 A2 + b0 I
+			for (int i = 0; i < nn; i++)
+				tmp[i] = b[12] * A6[i] + b[10] * A4[i] + b[8] * A2[i];
+
+			multiply(A6, tmp, V, n);
+
+			for (int i = 0; i < nn; i++)
+				V[i] += b[6] * A6[i] + b[4] * A4[i] + b[2] * A2[i];
+
+			for (int i = 0; i < n; i++)
+				V[i*n + i] += b[0];
+		}
+
+		// solve (V - U) X = (V + U)
+		double[] P = A;
+		double[] X = A2;
+
+		for (int i = 0; i < nn; i++) {
+			P[i] = V[i] - U[i];
+			X[i] = V[i] + U[i];
+		}
+
+		int[] ipiv = new int[n];
+		org.netlib.util.intW info = new intW(0);
+		Dgesv.dgesv(n, n, P, 0, n, ipiv, 0, X, 0, n, info);
+
+		// (the message is only built if there is an error)
+		if (info.val != 0) {
+			System.out.println("dgesv in padeExponential returned with error " + info.val);
+			return false;
+		}
+
+		for (int k = 0; k < squarings; k++) {
+			multiply(X, X, tmp, n);
+			double[] swap = X;
+			X = tmp;
+			tmp = swap;
+		}
+
+		System.arraycopy(X, 0, out, 0, nn);
+		return true;
+	}
+
+	// c = a b for n x n column-major arrays
+	private static void multiply(double[] a, double[] b, double[] c, int n) {
+		Dgemm.dgemm("n", "n", n, n, n,
+		            1.0, a, 0, n,
+		            b, 0, n, 0.0,
+		            c, 0, n);
+	}
+
+	// Uses an eigendecomposition computed elsewhere (e.g. read back
+	// from an EigenDecompositionCache): eigenvalues d and column-major
+	// eigenvectors Z and their inverse, as eigenDecompose would give,
+	// and whether eigenDecompose found them usable.
+	public synchronized void setEigenDecomposition(double[] d, double[] z, double[] zinv, boolean usable) {
+		ZStore = new LAPACKMatrixOperationsWrapper(rows, cols);
+		System.arraycopy(z, 0, ZStore.matrix, 0, z.length);
+		ZinvStore = new LAPACKMatrixOperationsWrapper(rows, cols);
+		System.arraycopy(zinv, 0, ZinvStore.matrix, 0, zinv.length);
+		dStore = new LAPACKVectorOperationsWrapper(rows);
+		System.arraycopy(d, 0, dStore.vector, 0, d.length);
+		ZinvBStore = null;
+		ZtWStore = null;
+		padeStore = !usable;
+	}
+
+	public synchronized boolean hasEigenDecomposition() {
+		return ZStore != null;
+	}
+
+	// The three parts of the eigendecomposition, computing it if needed
+	public synchronized double[] getEigenvalues() {
+		eigenDecompose();
+		return dStore.vector;
+	}
+
+	public synchronized double[] getEigenvectors() {
+		eigenDecompose();
+		return ZStore.matrix;
+	}
+
+	public synchronized double[] getEigenvectorsInverse() {
+		eigenDecompose();
+		return (ZinvStore == null) ? null : ZinvStore.matrix;
 	}
 
 	public void expDiagonal(double[] v, double scale) {
@@ -501,6 +958,44 @@ public class LAPACKMatrixOperationsWrapper {
 		return C;
 	}
 
+	// Same as above, but writes A*B into C (which must be A.rows x B.cols)
+	public void matrixMultiplication(LAPACKMatrixOperationsWrapper A, LAPACKMatrixOperationsWrapper B,
+	                                 LAPACKMatrixOperationsWrapper C) {
+		int M = A.rows;
+		int N = B.cols;
+		int K = A.cols;
+
+		if (!Assert(C.rows == M && C.cols == N, "C is A.rows x B.cols"))
+			return;
+
+		Dgemm.dgemm("n", "n", M, N, K,
+		            1.0, A.matrix, 0, M,
+		            B.matrix, 0, K, 0.0,
+		            C.matrix, 0, M);
+	}
+
+	// Writes A^T*B into C (which must be A.cols x B.cols)
+	public void transposeMultiplication(LAPACKMatrixOperationsWrapper A, LAPACKMatrixOperationsWrapper B,
+	                                    LAPACKMatrixOperationsWrapper C) {
+		int M = A.cols;
+		int N = B.cols;
+		int K = A.rows;
+
+		if (!Assert(C.rows == M && C.cols == N && B.rows == K, "C is A.cols x B.cols"))
+			return;
+
+		Dgemm.dgemm("t", "n", M, N, K,
+		            1.0, A.matrix, 0, K,
+		            B.matrix, 0, K, 0.0,
+		            C.matrix, 0, M);
+	}
+
+	// Writes this^T*x into y (of length cols)
+	public void transposeTimes(double[] x, double[] y) {
+		Dgemv.dgemv("t", rows, cols, 1.0, matrix, 0, rows,
+		            x, 0, 1, 0.0, y, 0, 1);
+	}
+
 	public void print() {
 		/*System.out.println("Printing matrix");
 
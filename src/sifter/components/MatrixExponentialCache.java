@@ -0,0 +1,197 @@
+/**
+ * Bounded cache of matrix exponentials exp(Qt) keyed by the scaling t
+ * (rate times branch length). Each entry holds the full S x S
+ * exponential and the S x F summary over single functions, each
+ * filled in once it has been asked for. Least recently used entries are evicted once
+ * the matrices held take up more than the capacity (in bytes).
+ */
+
+package sifter.components;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+public class MatrixExponentialCache {
+
+	// 128 MB of doubles by default
+	public static final long DEFAULT_CAPACITY = 128L * 1024L * 1024L;
+
+	private LinkedHashMap<Double, Entry> entries;
+	private long capacity;
+	private long size;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	public MatrixExponentialCache() {
+		this(DEFAULT_CAPACITY);
+	}
+
+	public MatrixExponentialCache(long capacityBytes) {
+		// access order, so iteration starts at the least recently used
+		entries = new LinkedHashMap<Double, Entry>(16, 0.75f, true);
+		capacity = capacityBytes;
+		size = 0;
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	// returns null (and counts a miss) if t has not been computed
+	public synchronized Entry get(double t) {
+		Entry e = entries.get(Double.valueOf(t));
+
+		if (e == null)
+			misses++;
+		else
+			hits++;
+
+		return e;
+	}
+
+	public synchronized Entry put(double t, LAPACKMatrixOperationsWrapper full) {
+		Entry e = new Entry(t, full);
+		Entry old = entries.put(Double.valueOf(t), e);
+
+		if (old != null)
+			size -= old.bytes();
+
+		size += e.bytes();
+		evict();
+		return e;
+	}
+
+	// attaches the summary matrix to an entry that is already cached
+	public synchronized void setSummary(Entry e, LAPACKMatrixOperationsWrapper summary) {
+		boolean cached = (entries.get(Double.valueOf(e.scaling)) == e);
+
+		if (cached)
+			size -= e.bytes();
+
+		e.summary = summary;
+
+		if (cached) {
+			size += e.bytes();
+			evict();
+		}
+	}
+
+	// attaches exp(Qt)^T W for the parent weights W (see
+	// GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject)
+	public synchronized void setParentSummary(Entry e, LAPACKMatrixOperationsWrapper parentSummary) {
+		boolean cached = (entries.get(Double.valueOf(e.scaling)) == e);
+
+		if (cached)
+			size -= e.bytes();
+
+		e.parentSummary = parentSummary;
+
+		if (cached) {
+			size += e.bytes();
+			evict();
+		}
+	}
+
+	// attaches the full exponential to an entry that only had a summary
+	public synchronized void setFull(Entry e, LAPACKMatrixOperationsWrapper full) {
+		boolean cached = (entries.get(Double.valueOf(e.scaling)) == e);
+
+		if (cached)
+			size -= e.bytes();
+
+		e.full = full;
+
+		if (cached) {
+			size += e.bytes();
+			evict();
+		}
+	}
+
+	// Drop least recently used entries until we are under capacity,
+	// always keeping the most recently used one.
+	private void evict() {
+		Iterator<Entry> it = entries.values().iterator();
+
+		while (size > capacity && entries.size() > 1 && it.hasNext()) {
+			Entry e = it.next();
+			size -= e.bytes();
+			it.remove();
+			evictions++;
+		}
+	}
+
+	public synchronized void clear() {
+		entries.clear();
+		size = 0;
+	}
+
+	public synchronized void setCapacity(long capacityBytes) {
+		capacity = capacityBytes;
+		evict();
+	}
+
+	public long getCapacity() {
+		return capacity;
+	}
+
+	public synchronized long getSize() {
+		return size;
+	}
+
+	public synchronized int getNumEntries() {
+		return entries.size();
+	}
+
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	public synchronized long getEvictions() {
+		return evictions;
+	}
+
+	public synchronized void resetCounters() {
+		hits = 0;
+		misses = 0;
+		evictions = 0;
+	}
+
+	public synchronized String toString() {
+		return "Matrix exponential cache: " + entries.size() + " entries, "
+		       + size + " bytes, " + hits + " hits, " + misses + " misses, "
+		       + evictions + " evictions";
+	}
+
+	public static class Entry {
+		public double scaling;
+		public LAPACKMatrixOperationsWrapper full;
+		public LAPACKMatrixOperationsWrapper summary;
+		public LAPACKMatrixOperationsWrapper parentSummary;
+
+		public Entry(double t, LAPACKMatrixOperationsWrapper f) {
+			scaling = t;
+			full = f;
+			summary = null;
+			parentSummary = null;
+		}
+
+		public long bytes() {
+			long b = 0;
+
+			if (full != null)
+				b += 8L * full.matrix.length;
+
+			if (summary != null)
+				b += 8L * summary.matrix.length;
+
+			if (parentSummary != null)
+				b += 8L * parentSummary.matrix.length;
+
+			return b;
+		}
+	}
+}
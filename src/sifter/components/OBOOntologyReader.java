@@ -0,0 +1,196 @@
+/*
+ * Reads the is_a relation from a GO file in OBO format (go-basic.obo,
+ * for instance, gzipped or not) in one pass, as an alternative to the
+ * SQLite database that needs no JDBC driver. Lines are scanned as bytes
+ * and only the tags needed are looked at: the id of each [Term] stanza
+ * and its is_a lines. Edges are added in the order of the file.
+ */
+package sifter.components;
+
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.GZIPInputStream;
+
+public class OBOOntologyReader {
+
+	private static final byte[] TERM = "[Term]".getBytes();
+	private static final byte[] ID = "id:".getBytes();
+	private static final byte[] IS_A = "is_a:".getBytes();
+	private static final byte[] SQLITE = "SQLite format 3".getBytes();
+
+	private byte[] buf;
+	private int length;
+	private int lineno;
+	// GO number of the term being read, -1 outside [Term] stanzas
+	private int term;
+	private boolean inTerm;
+	// [Term] stanzas read with a GO id
+	private int terms;
+	private GOIsAGraph graph;
+
+	private OBOOntologyReader() {
+		buf = new byte[1 << 16];
+		length = 0;
+		lineno = 0;
+		term = -1;
+		inTerm = false;
+		terms = 0;
+		graph = new GOIsAGraph();
+	}
+
+	// True if the file is there and is not a SQLite database, and so is
+	// taken to be OBO
+	public static boolean isOBO(String fileName) {
+		File f = new File(fileName);
+
+		if (!f.isFile())
+			return false;
+
+		byte[] head = new byte[SQLITE.length];
+		int n = 0;
+
+		try {
+			InputStream in = new FileInputStream(f);
+
+			try {
+				int r;
+
+				while (n < head.length && (r = in.read(head, n, head.length - n)) > 0)
+					n += r;
+			}
+			finally {
+				in.close();
+			}
+		}
+		catch (IOException e) {
+			return false;
+		}
+
+		return !(n == head.length && startsWith(head, 0, n, SQLITE));
+	}
+
+	public static GOIsAGraph read(String fileName) throws IOException {
+		InputStream in = new BufferedInputStream(new FileInputStream(fileName), 1 << 16);
+
+		try {
+			// gzip by its magic number rather than the file's name
+			in.mark(2);
+			int b0 = in.read();
+			int b1 = in.read();
+			in.reset();
+
+			if (b0 == 0x1f && b1 == 0x8b)
+				in = new GZIPInputStream(in, 1 << 16);
+
+			OBOOntologyReader r = new OBOOntologyReader();
+			r.scan(in);
+
+			if (r.terms == 0)
+				throw new IOException("no [Term] stanzas with a GO id");
+
+			r.graph.build();
+			return r.graph;
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	// Splits the stream into lines, keeping a partial line at the end
+	// of the buffer for the next read
+	private void scan(InputStream in) throws IOException {
+		int r;
+
+		while ((r = in.read(buf, length, buf.length - length)) > 0) {
+			length += r;
+			int start = 0;
+
+			for (int i = 0; i < length; i++) {
+				if (buf[i] == '\n') {
+					line(start, i);
+					start = i + 1;
+				}
+			}
+
+			length -= start;
+			System.arraycopy(buf, start, buf, 0, length);
+
+			if (length == buf.length) {
+				byte[] b = new byte[2 * buf.length];
+				System.arraycopy(buf, 0, b, 0, length);
+				buf = b;
+			}
+		}
+
+		if (length > 0)
+			line(0, length);
+	}
+
+	private void line(int start, int end) throws IOException {
+		lineno++;
+
+		if (end > start && buf[end - 1] == '\r')
+			end--;
+
+		if (start == end)
+			return;
+
+		if (buf[start] == '[') {
+			inTerm = startsWith(buf, start, end, TERM);
+			term = -1;
+		}
+		else
+			if (!inTerm)
+				return;
+			else
+				if (startsWith(buf, start, end, ID)) {
+					term = goNumber(start + ID.length, end);
+
+					if (term >= 0)
+						terms++;
+				}
+				else
+					if (startsWith(buf, start, end, IS_A) && term >= 0) {
+						int parent = goNumber(start + IS_A.length, end);
+
+						if (parent >= 0)
+							graph.addEdge(term, parent);
+					}
+	}
+
+	// The GO number after optional spaces, as in "GO:0003674 ! name";
+	// -1 if it is some other id
+	private int goNumber(int i, int end) throws IOException {
+		while (i < end && buf[i] == ' ')
+			i++;
+
+		if (i + 3 > end || buf[i] != 'G' || buf[i + 1] != 'O' || buf[i + 2] != ':')
+			return -1;
+
+		i += 3;
+		int v = 0;
+		int digits = 0;
+
+		for (; i < end && buf[i] >= '0' && buf[i] <= '9'; i++, digits++)
+			v = 10 * v + (buf[i] - '0');
+
+		if (digits == 0 || digits > 9)
+			throw new IOException("bad GO id on line " + lineno);
+
+		return v;
+	}
+
+	private static boolean startsWith(byte[] b, int start, int end, byte[] prefix) {
+		if (end - start < prefix.length)
+			return false;
+
+		for (int i = 0; i < prefix.length; i++)
+			if (b[start + i] != prefix[i])
+				return false;
+
+		return true;
+	}
+}
@@ -0,0 +1,242 @@
+/*
+ * Binary snapshot of the is_a relation read from a GO database, kept
+ * next to the database (its name with ".snapshot" added), so that runs
+ * after the first map it instead of querying SQLite. Every family run
+ * against the same database reads the same relation.
+ *
+ * The snapshot is stamped with the database's size, modification time
+ * and SHA-1. If the size and time still match it is used as it is; if
+ * only the time has changed (a copy, say) the database is hashed to
+ * check it, and the snapshot takes the new time if it passes. The file
+ * is:
+ *   int magic, int version, long size, long mtime, byte sha1[20],
+ *   int terms, int edges,
+ *   int terms[terms], int childStart[terms + 1], int children[edges]
+ * big-endian (see GOIsAGraph for the arrays), and is read by mapping it.
+ */
+package sifter.components;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+
+public class OntologySnapshot {
+
+	private static final int MAGIC = 0x5349474f; // "SIGO"
+	private static final int VERSION = 1;
+	private static final int HEADER_BYTES = 4 + 4 + 8 + 8 + 20 + 4 + 4;
+	// after magic, version and size
+	private static final int MTIME_OFFSET = 4 + 4 + 8;
+
+	private File database;
+	private File snapshot;
+
+	public OntologySnapshot(String databaseFile) {
+		database = new File(databaseFile);
+		snapshot = new File(databaseFile + ".snapshot");
+	}
+
+	public String getFile() {
+		return snapshot.getPath();
+	}
+
+	// The relation from the snapshot, or null if there is none or it
+	// is not of this database
+	public GOIsAGraph load() {
+		if (!snapshot.isFile() || !database.isFile())
+			return null;
+
+		RandomAccessFile raf = null;
+
+		try {
+			raf = new RandomAccessFile(snapshot, "r");
+			FileChannel channel = raf.getChannel();
+
+			if (channel.size() < HEADER_BYTES)
+				return null;
+
+			MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+
+			if (buf.getInt() != MAGIC || buf.getInt() != VERSION)
+				return null;
+
+			long size = buf.getLong();
+			long mtime = buf.getLong();
+			byte[] sha1 = new byte[20];
+			buf.get(sha1);
+
+			if (size != database.length())
+				return null;
+
+			// taken before hashing, so a change made meanwhile is
+			// hashed again next time
+			long now = database.lastModified();
+			boolean restamp = false;
+
+			if (mtime != now) {
+				if (!Arrays.equals(sha1, hash(database)))
+					return null;
+
+				restamp = true;
+			}
+
+			int n = buf.getInt();
+			int e = buf.getInt();
+
+			if (n < 0 || e < 0 || channel.size() != HEADER_BYTES + 4L * (2L * n + 1 + e))
+				return null;
+
+			IntBuffer ints = buf.asIntBuffer();
+			int[] terms = new int[n];
+			int[] childStart = new int[n + 1];
+			int[] children = new int[e];
+			ints.get(terms);
+			ints.get(childStart);
+			ints.get(children);
+
+			if (restamp)
+				restamp(now);
+
+			return new GOIsAGraph(terms, childStart, children);
+		}
+		catch (IOException e) {
+			System.out.println("Warning: could not read ontology snapshot " + snapshot + ": " + e);
+			return null;
+		}
+		finally {
+			try {
+				if (raf != null)
+					raf.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	// The database is the same but its time has changed, so stamp the
+	// snapshot with the new time; otherwise every run hashes it again
+	private void restamp(long mtime) {
+		RandomAccessFile raf = null;
+
+		try {
+			raf = new RandomAccessFile(snapshot, "rw");
+			raf.seek(MTIME_OFFSET);
+			raf.writeLong(mtime);
+		}
+		catch (IOException e) {
+			System.out.println("Warning: could not update ontology snapshot " + snapshot + ": " + e);
+		}
+		finally {
+			try {
+				if (raf != null)
+					raf.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	// Writes to a temporary file first, so that a run reading the
+	// snapshot never sees half of one. The stamp is taken before the
+	// relation was read, so a database changed meanwhile is caught.
+	public void store(GOIsAGraph graph, long size, long mtime) {
+		File tmp = null;
+		DataOutputStream out = null;
+
+		try {
+			byte[] sha1 = hash(database);
+
+			if (database.length() != size || database.lastModified() != mtime)
+				return; // changed while it was being read
+
+			File dir = snapshot.getAbsoluteFile().getParentFile();
+			tmp = File.createTempFile("ontology", ".tmp", dir);
+			out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 1 << 16));
+			out.writeInt(MAGIC);
+			out.writeInt(VERSION);
+			out.writeLong(size);
+			out.writeLong(mtime);
+			out.write(sha1);
+			out.writeInt(graph.terms.length);
+			out.writeInt(graph.children.length);
+
+			for (int i = 0; i < graph.terms.length; i++)
+				out.writeInt(graph.terms[i]);
+
+			for (int i = 0; i < graph.childStart.length; i++)
+				out.writeInt(graph.childStart[i]);
+
+			for (int i = 0; i < graph.children.length; i++)
+				out.writeInt(graph.children[i]);
+
+			out.close();
+			out = null;
+			// replaces an old snapshot in one step, so there is always
+			// a whole one (old or new) to read
+			Files.move(tmp.toPath(), snapshot.toPath(), StandardCopyOption.ATOMIC_MOVE,
+			           StandardCopyOption.REPLACE_EXISTING);
+		}
+		catch (IOException e) {
+			System.out.println("Warning: could not write ontology snapshot " + snapshot + ": " + e);
+
+			if (tmp != null)
+				tmp.delete();
+		}
+		finally {
+			try {
+				if (out != null)
+					out.close();
+			}
+			catch (IOException e) {
+			}
+		}
+	}
+
+	// size and modification time of the database now, for store
+	public long getDatabaseSize() {
+		return database.length();
+	}
+
+	public long getDatabaseTime() {
+		return database.lastModified();
+	}
+
+	private static byte[] hash(File f) throws IOException {
+		MessageDigest md;
+
+		try {
+			md = MessageDigest.getInstance("SHA-1");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+
+		InputStream in = new FileInputStream(f);
+
+		try {
+			byte[] b = new byte[1 << 16];
+			int r;
+
+			while ((r = in.read(b)) > 0)
+				md.update(b, 0, r);
+		}
+		finally {
+			in.close();
+		}
+
+		return md.digest();
+	}
+}
@@ -0,0 +1,220 @@
+/*
+ * Gamma (upward), delta (downward) and posterior messages for every
+ * node of a tree, each kept in one flat array indexed by
+ * node ordinal * width + function, rather than one small array per
+ * node in a Hashtable. Messages are probabilities in linear space. A
+ * node whose gamma carries no information (a leaf without evidence, or a
+ * subtree without any) is marked as such instead of holding a vector.
+ *
+ * Each gamma is normalised function by function; the product of all the
+ * normalisers divided out in a node's subtree is its scale, kept as a
+ * mantissa and a power of two so that it neither underflows nor needs a
+ * log until it is asked for.
+ *
+ * When evidence changes after a full pass, the deltas and posteriors
+ * it invalidates are not cleared but left behind the evidence count;
+ * those set (or kept) since the last newEvidence are current.
+ */
+package sifter.components;
+
+public class PhylogenyMessages {
+
+	private int nodes;
+	private int width;
+	private double[] gamma;
+	private double[] delta;
+	private double[] posterior;
+	private boolean[] hasGamma;
+	// gamma set but uninformative (the length 1 prior)
+	private boolean[] priorGamma;
+	private boolean[] hasDelta;
+	private boolean[] hasPosterior;
+	private double[] scale;
+	private int[] scaleExponent;
+	private int evidence;
+	private int[] deltaEvidence;
+	private int[] posteriorEvidence;
+
+	public PhylogenyMessages(int numNodes, int numFunctions) {
+		nodes = numNodes;
+		width = numFunctions;
+		gamma = new double[nodes * width];
+		delta = new double[nodes * width];
+		posterior = new double[nodes * width];
+		hasGamma = new boolean[nodes];
+		priorGamma = new boolean[nodes];
+		hasDelta = new boolean[nodes];
+		hasPosterior = new boolean[nodes];
+		scale = new double[nodes];
+		scaleExponent = new int[nodes];
+		evidence = 0;
+		deltaEvidence = new int[nodes];
+		posteriorEvidence = new int[nodes];
+		clear();
+	}
+
+	public int numNodes() {
+		return nodes;
+	}
+
+	public int width() {
+		return width;
+	}
+
+	// forget all messages, keeping the storage
+	public void clear() {
+		for (int i = 0; i < nodes; i++) {
+			hasGamma[i] = false;
+			priorGamma[i] = false;
+			hasDelta[i] = false;
+			hasPosterior[i] = false;
+			scale[i] = 1.0;
+			scaleExponent[i] = 0;
+		}
+	}
+
+	// index of function 0 of the node in the flat arrays
+	public int offset(int node) {
+		return node * width;
+	}
+
+	// The flat arrays themselves, for the message passing kernels
+	public double[] gammas() {
+		return gamma;
+	}
+
+	public double[] deltas() {
+		return delta;
+	}
+
+	public double[] posteriors() {
+		return posterior;
+	}
+
+	// g of length 1 is the uninformative prior
+	public void setGamma(int node, double[] g) {
+		hasGamma[node] = true;
+		priorGamma[node] = (g.length == 1);
+
+		if (!priorGamma[node])
+			System.arraycopy(g, 0, gamma, node * width, width);
+	}
+
+	// marks the node's gamma as the uninformative prior
+	public void setPriorGamma(int node) {
+		hasGamma[node] = true;
+		priorGamma[node] = true;
+		scale[node] = 1.0;
+		scaleExponent[node] = 0;
+	}
+
+	public void setDelta(int node, double[] d) {
+		hasDelta[node] = true;
+		deltaEvidence[node] = evidence;
+		System.arraycopy(d, 0, delta, node * width, width);
+	}
+
+	public void setPosterior(int node, double[] p) {
+		hasPosterior[node] = true;
+		posteriorEvidence[node] = evidence;
+		System.arraycopy(p, 0, posterior, node * width, width);
+	}
+
+	// Some evidence has changed: every delta and posterior is out of
+	// date until it is set again or kept
+	public void newEvidence() {
+		evidence++;
+	}
+
+	// The node's delta does not depend on the evidence that changed,
+	// so it stays current if it was current before the change; a delta
+	// already out of date from earlier changes stays out of date
+	public void keepDelta(int node) {
+		if (hasDelta[node] && deltaEvidence[node] == evidence - 1)
+			deltaEvidence[node] = evidence;
+	}
+
+	public boolean isDeltaCurrent(int node) {
+		return hasDelta[node] && deltaEvidence[node] == evidence;
+	}
+
+	public boolean isPosteriorCurrent(int node) {
+		return hasPosterior[node] && posteriorEvidence[node] == evidence;
+	}
+
+	// the node's scale is m * 2^e
+	public void setScale(int node, double m, int e) {
+		scale[node] = m;
+		scaleExponent[node] = e;
+	}
+
+	public double getScaleMantissa(int node) {
+		return scale[node];
+	}
+
+	public int getScaleExponent(int node) {
+		return scaleExponent[node];
+	}
+
+	public double getLogScale(int node) {
+		return Math.log(scale[node]) + scaleExponent[node] * Math.log(2.0);
+	}
+
+	public boolean hasGamma(int node) {
+		return hasGamma[node];
+	}
+
+	// true if the node has a gamma vector rather than just the prior
+	public boolean isGammaInformative(int node) {
+		return hasGamma[node] && !priorGamma[node];
+	}
+
+	public boolean hasDelta(int node) {
+		return hasDelta[node];
+	}
+
+	public boolean hasPosterior(int node) {
+		return hasPosterior[node];
+	}
+
+	public double getGamma(int node, int f) {
+		return gamma[node * width + f];
+	}
+
+	public double getDelta(int node, int f) {
+		return delta[node * width + f];
+	}
+
+	public double getPosterior(int node, int f) {
+		return posterior[node * width + f];
+	}
+
+	// Copies of a node's messages (the gamma of an uninformative node
+	// is the length 1 prior), or null if not set
+	public double[] getGamma(int node) {
+		if (!hasGamma[node])
+			return null;
+
+		if (priorGamma[node]) {
+			double[] prior = new double[1];
+			prior[0] = 1;
+			return prior;
+		}
+
+		return copy(gamma, node);
+	}
+
+	public double[] getDelta(int node) {
+		return hasDelta[node] ? copy(delta, node) : null;
+	}
+
+	public double[] getPosterior(int node) {
+		return hasPosterior[node] ? copy(posterior, node) : null;
+	}
+
+	private double[] copy(double[] a, int node) {
+		double[] v = new double[width];
+		System.arraycopy(a, node * width, v, 0, width);
+		return v;
+	}
+}
@@ -0,0 +1,132 @@
+/*
+ * The shape of a reconciled tree flattened into arrays indexed by node
+ * ordinal (the node's position in the tree Vector). Children are kept
+ * as first-child/next-sibling lists in the same order as the nodes'
+ * children Vectors, and post-order and pre-order schedules are worked
+ * out once, so message passing walks the tree linearly.
+ */
+package sifter.components;
+
+import java.util.Vector;
+
+public class PhylogenyTopology {
+
+	public int size;
+	public int root;
+	// -1 where there is no parent/child/sibling
+	public int[] parent;
+	public int[] firstChild;
+	public int[] nextSibling;
+	public int[] numChildren;
+	// nodes reachable from the root, children before parents
+	public int[] postOrder;
+	// the same nodes, parents before children
+	public int[] preOrder;
+	// position of each node in preOrder; a subtree is the subtreeSize
+	// entries of preOrder starting at its root
+	public int[] prePosition;
+	public boolean[] duplication;
+	public double[] branchLength;
+	// nodes below each node, counting itself
+	public int[] subtreeSize;
+
+	public PhylogenyTopology(Vector<ProbabilisticReconciledPhylogenyObject.Node> tree, int rootIndex) {
+		size = tree.size();
+		root = rootIndex;
+		parent = new int[size];
+		firstChild = new int[size];
+		nextSibling = new int[size];
+		numChildren = new int[size];
+		duplication = new boolean[size];
+		branchLength = new double[size];
+		subtreeSize = new int[size];
+
+		for (int i = 0; i < size; i++) {
+			tree.elementAt(i).setOrdinal(i);
+			parent[i] = -1;
+			firstChild[i] = -1;
+			nextSibling[i] = -1;
+		}
+
+		for (int i = 0; i < size; i++) {
+			ProbabilisticReconciledPhylogenyObject.Node n = tree.elementAt(i);
+			duplication[i] = n.hasDuplication();
+			branchLength[i] = n.getParentDistance();
+
+			if (n.getParent() != null)
+				parent[i] = n.getParent().getOrdinal();
+
+			Vector<ProbabilisticReconciledPhylogenyObject.Node> children = n.getChildren();
+
+			if (children == null)
+				continue;
+
+			numChildren[i] = children.size();
+			int last = -1;
+
+			for (int k = 0; k < children.size(); k++) {
+				int c = children.elementAt(k).getOrdinal();
+
+				if (last < 0)
+					firstChild[i] = c;
+				else
+					nextSibling[last] = c;
+
+				last = c;
+			}
+		}
+
+		// pre-order by an explicit stack, pushing children in reverse
+		// so they come off in order
+		int[] stack = new int[size];
+		int[] order = new int[size];
+		int top = 0;
+		int count = 0;
+
+		if (root >= 0)
+			stack[top++] = root;
+
+		while (top > 0) {
+			int v = stack[--top];
+			order[count++] = v;
+			int base = top;
+
+			for (int c = firstChild[v]; c >= 0; c = nextSibling[c])
+				stack[top++] = c;
+
+			for (int i = base, j = top - 1; i < j; i++, j--) {
+				int t = stack[i];
+				stack[i] = stack[j];
+				stack[j] = t;
+			}
+		}
+
+		preOrder = new int[count];
+		System.arraycopy(order, 0, preOrder, 0, count);
+		prePosition = new int[size];
+
+		for (int i = 0; i < count; i++)
+			prePosition[preOrder[i]] = i;
+
+		// children come after their parent in pre-order, so walking it
+		// backwards gives a post-order
+		postOrder = new int[count];
+
+		for (int i = 0; i < count; i++) {
+			int v = preOrder[count - 1 - i];
+			postOrder[i] = v;
+			subtreeSize[v] = 1;
+
+			for (int c = firstChild[v]; c >= 0; c = nextSibling[c])
+				subtreeSize[v] += subtreeSize[c];
+		}
+	}
+
+	public boolean isLeaf(int v) {
+		return firstChild[v] < 0;
+	}
+
+	public boolean isRoot(int v) {
+		return parent[v] < 0;
+	}
+}
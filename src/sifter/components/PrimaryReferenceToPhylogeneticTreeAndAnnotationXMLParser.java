@@ -219,6 +219,23 @@ public class PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser {
 		return phyTree;
 	}
 
+	// The same family with another tree (a view of this one's, say);
+	// everything else is shared with this family, not copied
+	public PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser withTree(ProbabilisticReconciledPhylogenyObject t) {
+		PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser f = new PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser(pFamNum);
+		f.proteinAlignments = proteinAlignments;
+		f.proteinNames = proteinNames;
+		f.proteinIDs = proteinIDs;
+		f.proteinList = proteinList;
+		f.pFamName = pFamName;
+		f.pFamFunction = pFamFunction;
+		f.GTree = GTree;
+		f.STree = STree;
+		f.maxAlignment = maxAlignment;
+		f.phyTree = t;
+		return f;
+	}
+
 
 	////////////////////////////////////////////////////////////////
 	// Input from XML file                                        //
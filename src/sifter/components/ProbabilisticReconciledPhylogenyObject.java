@@ -17,8 +17,11 @@ import java.io.IOException;
 import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 
 import org.forester.io.parsers.PhylogenyParser;
 import org.forester.io.parsers.phyloxml.PhyloXmlParser;
@@ -37,12 +40,36 @@ public class ProbabilisticReconciledPhylogenyObject {
 	private double singleLeafPrior;
 	private double[] priorPolynomial;
 	private int alignmentLength;
-	private Hashtable<Node, double[]> gammasFinal;
-	private Hashtable<Node, double[]> deltasFinal;
+	// gamma/delta/posterior messages from the last propagation
+	private PhylogenyMessages messages;
+	// pool used to precompute the edge exponentials
+	private ForkJoinPool pool;
+	// ratio of the geometric grid branch lengths are snapped to
+	// (0 if they are used as given)
+	private double branchGridRatio;
+	// flattened shape of the tree; rebuilt when it is needed after
+	// any node changes
+	private PhylogenyTopology topology;
+	// subtrees with fewer nodes than this are passed sequentially
+	private int parallelThreshold;
+	// posteriors returned by propagateExactThroughoutTree, refilled
+	// in place by the next call
+	private Hashtable<Node, double[]> posteriorTable;
+	// the model and scalings of the last full propagation, which
+	// updateEvidence goes on using
+	private GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject lastPfx;
+	private Hashtable<String, Double> lastScaleParams;
+	// nodes whose evidence is ignored (null if none), so that a view
+	// (see evidenceView) can hold evidence out without removing it
+	private boolean[] hidden;
 	//private Hashtable facListsRepository;
 	//private int maxCheckSum;
 
 	private static String SPECIATION_PARAMS = "species";
+	// products of gamma factors are scaled up by 2^RESCALE_BITS once
+	// they fall below RESCALE_BELOW; a power of two rounds nothing
+	private static final int RESCALE_BITS = 256;
+	private static final double RESCALE_BELOW = Math.scalb(1.0, -RESCALE_BITS);
 	private static String DUPLICATION_PARAMS = "duplication";
 
 	public ProbabilisticReconciledPhylogenyObject(int alignmentLen) {
@@ -55,6 +82,152 @@ public class ProbabilisticReconciledPhylogenyObject {
 		//facListsRepository = new Hashtable();
 		//maxCheckSum = 11;
 		alignmentLength = alignmentLen;
+		pool = ForkJoinPool.commonPool();
+		branchGridRatio = 0;
+		topology = null;
+		messages = null;
+		parallelThreshold = 32;
+		posteriorTable = null;
+		lastPfx = null;
+		lastScaleParams = null;
+		hidden = null;
+	}
+
+	/**
+	 * A view of this tree with the evidence of some nodes held out,
+	 * for one cross-validation fold. It shares the nodes and the
+	 * topology with this tree, and so must not change them, but has
+	 * its own messages and posteriors; the held out evidence is
+	 * ignored rather than removed from the nodes. Views can therefore
+	 * propagate at the same time, on different threads.
+	 * @param heldOut nodes of this tree
+	 * @return the view
+	 */
+	public ProbabilisticReconciledPhylogenyObject evidenceView(Vector<Node> heldOut) {
+		ProbabilisticReconciledPhylogenyObject v = new ProbabilisticReconciledPhylogenyObject(alignmentLength);
+		v.root = root;
+		v.tree = tree;
+		v.singleLeafPrior = singleLeafPrior;
+		v.priorPolynomial = priorPolynomial;
+		v.pool = pool;
+		v.branchGridRatio = branchGridRatio;
+		v.topology = getTopology();
+		v.parallelThreshold = parallelThreshold;
+		v.hidden = new boolean[tree.size()];
+
+		if (hidden != null)
+			System.arraycopy(hidden, 0, v.hidden, 0, hidden.length);
+
+		for (int i = 0; i < heldOut.size(); i++)
+			v.hidden[heldOut.elementAt(i).getOrdinal()] = true;
+
+		return v;
+	}
+
+	// true if the node has evidence that is not held out
+	private boolean hasEvidence(int node) {
+		return tree.elementAt(node).hasLocalProbabilities()
+		       && (hidden == null || !hidden[node]);
+	}
+
+	public void setForkJoinPool(ForkJoinPool p) {
+		pool = p;
+	}
+
+	public ForkJoinPool getForkJoinPool() {
+		return pool;
+	}
+
+	// Subtrees smaller than this many nodes are not split into
+	// parallel tasks during message passing
+	public void setParallelThreshold(int n) {
+		parallelThreshold = n;
+	}
+
+	public int getParallelThreshold() {
+		return parallelThreshold;
+	}
+
+	/**
+	 * Snaps every branch length to the nearest (in log scale) point
+	 * ratio^k of a geometric grid, so that the tree has few distinct
+	 * exp(Qt) to compute. A ratio <= 1 turns this off and restores
+	 * the lengths as read. Nodes added later are snapped as well.
+	 * Returns the largest relative change in a branch length, which
+	 * is at most sqrt(ratio) - 1.
+	 */
+	public double setBranchLengthGrid(double ratio) {
+		branchGridRatio = (ratio > 1.0) ? ratio : 0;
+		double maxError = 0;
+		Hashtable<Double, Double> distinct = new Hashtable<Double, Double>();
+
+		if (tree == null)
+			return maxError;
+
+		for (int i = 0; i < tree.size(); i++) {
+			Node n = tree.elementAt(i);
+			n.parentDistance = snapToBranchGrid(n.rawParentDistance);
+
+			if (n.isRoot())
+				continue;
+
+			distinct.put(new Double(n.parentDistance), new Double(n.rawParentDistance));
+
+			if (n.rawParentDistance > 0) {
+				double error = Math.abs(n.parentDistance - n.rawParentDistance) / n.rawParentDistance;
+
+				if (error > maxError)
+					maxError = error;
+			}
+		}
+
+		topology = null;
+
+		if (branchGridRatio > 0)
+			System.out.println("Snapped branch lengths to grid with ratio " + branchGridRatio
+			                   + ": " + distinct.size() + " distinct lengths, max relative error "
+			                   + maxError);
+
+		return maxError;
+	}
+
+	public double getBranchLengthGrid() {
+		return branchGridRatio;
+	}
+
+	private double snapToBranchGrid(double d) {
+		if (branchGridRatio <= 1.0 || d <= 0.0)
+			return d;
+
+		double k = Math.rint(Math.log(d) / Math.log(branchGridRatio));
+		return Math.pow(branchGridRatio, k);
+	}
+
+	/**
+	 * Bound on how far any transition probability can move because
+	 * of snapping: |exp(Qt') - exp(Qt)| <= |t' - t| ||Q||, with the
+	 * max row sum norm of the rate matrix, over all edges.
+	 */
+	public double getBranchGridErrorBound(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
+	                                      Hashtable<String, Double> scaleParams) {
+		double species = ((Double)scaleParams.get(SPECIATION_PARAMS)).doubleValue();
+		double duplication = ((Double)scaleParams.get(DUPLICATION_PARAMS)).doubleValue();
+		double maxDiff = 0;
+
+		for (int node = 0; node < tree.size(); node++) {
+			Node n = tree.elementAt(node);
+
+			if (n.isRoot())
+				continue;
+
+			double inUse = n.getParent().hasDuplication() ? duplication : species;
+			double diff = inUse * Math.abs(n.parentDistance - n.rawParentDistance);
+
+			if (diff > maxDiff)
+				maxDiff = diff;
+		}
+
+		return maxDiff * pfx.getQNorm();
 	}
 
 	/* iterator with breadth first traversal of tree */
@@ -202,6 +375,15 @@ public class ProbabilisticReconciledPhylogenyObject {
 			}
 		}
 
+		topology = new PhylogenyTopology(tree, root);
+	}
+
+	// The compiled shape of the tree, rebuilt if nodes have changed
+	public PhylogenyTopology getTopology() {
+		if (topology == null && tree != null && root >= 0)
+			topology = new PhylogenyTopology(tree, root);
+
+		return topology;
 	}
 
 	public void maptoTree(String doc) {
@@ -736,14 +918,19 @@ public class ProbabilisticReconciledPhylogenyObject {
 		public boolean duplication;
 		public Node parent;
 		public double parentDistance;
+		// branch length before snapping to the grid, if any
+		private double rawParentDistance;
 		public Vector<Node> children;
 		private double[] localProbabilities;
+		// position in the tree Vector, set by PhylogenyTopology
+		private int ordinal;
 
 		public Node(Object o) {
 			obj = o;
 			fixed = false;
 			parent = null;
 			parentDistance = 1;
+			rawParentDistance = 1;
 			children = null;
 			duplication = false;
 			localProbabilities = null;
@@ -757,6 +944,7 @@ public class ProbabilisticReconciledPhylogenyObject {
 		public Node(Object value, Node p) {
 			parent = p;
 			parentDistance = 1;
+			rawParentDistance = 1;
 			duplication = false;
 			obj = parseNHXName((String)value);
 			children = null;
@@ -816,6 +1004,7 @@ public class ProbabilisticReconciledPhylogenyObject {
 
 		public void setDuplicate(boolean dup) {
 			duplication = dup;
+			topology = null;
 		}
 
 		public boolean hasDuplication() {
@@ -828,6 +1017,7 @@ public class ProbabilisticReconciledPhylogenyObject {
 
 			children.add(c);
 			children.trimToSize();
+			topology = null;
 		}
 
 		public double getParentDistance() {
@@ -840,21 +1030,32 @@ public class ProbabilisticReconciledPhylogenyObject {
 		// goes down.
 		public void setParentDistance(double pd, int alignLength) {
 			if ((pd >= 1.0 || pd == 0.0) && alignLength > 0) {
-				parentDistance = (double)(pd) / (double)alignLength;
+				rawParentDistance = (double)(pd) / (double)alignLength;
 			}
 			else
 				if (pd < 1.0 && pd > 0.0) {
-					parentDistance = pd;
+					rawParentDistance = pd;
 				}
 
 			//highest/lowest it should get
-			//if(parentDistance > 1.0) parentDistance = 1.0;
-			if (parentDistance <= 0.0 && alignLength > 0)
-				parentDistance = 1.0 / (double)alignLength;
+			//if(rawParentDistance > 1.0) rawParentDistance = 1.0;
+			if (rawParentDistance <= 0.0 && alignLength > 0)
+				rawParentDistance = 1.0 / (double)alignLength;
+
+			//rawParentDistance = Math.sqrt(rawParentDistance);
+			if (rawParentDistance > 1.0)
+				rawParentDistance = 1.0;
 
-			//parentDistance = Math.sqrt(parentDistance);
-			if (parentDistance > 1.0)
-				parentDistance = 1.0;
+			parentDistance = snapToBranchGrid(rawParentDistance);
+			topology = null;
+		}
+
+		public int getOrdinal() {
+			return ordinal;
+		}
+
+		public void setOrdinal(int o) {
+			ordinal = o;
 		}
 
 		public Vector<Node> getChildren() {
@@ -947,6 +1148,19 @@ public class ProbabilisticReconciledPhylogenyObject {
 		}
 	}
 
+	// getPrior for every state, by power set index
+	public double[] getStatePriors(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx) {
+		ProteinFunctionMarkovState ps = new ProteinFunctionMarkovState(pfx.rows, pfx.maxFunctions());
+		double[] priors = new double[ps.powerSetSize()];
+
+		while (ps.hasNext()) {
+			ps.getNext();
+			priors[ps.setIndex()] = getPrior(ps);
+		}
+
+		return priors;
+	}
+
 	public double getPrior(ProteinFunctionMarkovState ps) {
 		int numWithout = 0;
 
@@ -971,280 +1185,642 @@ public class ProbabilisticReconciledPhylogenyObject {
 		singleLeafPrior = singlelprior;
 	}
 
+	/**
+	 * Distinct scalings (rate times branch length) of the edges in
+	 * the tree, in tree order. The rate of an edge is the duplication
+	 * rate if its parent is a duplication, otherwise the speciation
+	 * rate, the same as in the message passing below.
+	 */
+	public LinkedHashSet<Double> getEdgeScalings(Hashtable<String, Double> scaleParams) {
+		LinkedHashSet<Double> scalings = new LinkedHashSet<Double>();
+		double species = ((Double)scaleParams.get(SPECIATION_PARAMS)).doubleValue();
+		double duplication = ((Double)scaleParams.get(DUPLICATION_PARAMS)).doubleValue();
+
+		for (int node = 0; node < tree.size(); node++) {
+			Node n = tree.elementAt(node);
+			Node parent = n.getParent();
+
+			if (parent == null)
+				continue;
+
+			double inUse = species;
+
+			if (parent.hasDuplication())
+				inUse = duplication;
+
+			scalings.add(new Double(inUse * n.getParentDistance()));
+		}
+
+		return scalings;
+	}
+
 	/**
 	 * performs exact inference in the tree, given the speciation
 	 * transition matrix and the duplication transition matrix.
+	 * The returned table (and its arrays) are reused by the next call.
+	 * Messages are kept as probabilities rather than logs; see
+	 * getLogLikelihood for what their normalisers add up to.
 	 */
 	@SuppressWarnings("unused")
 	public Hashtable<Node, double[]> propagateExactThroughoutTree(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
 	    Hashtable<String, Double> scaleParams) {
 		//if(true) return null;
 		//Propagate up tree
-		double[] evidenceProbs = null;
-		double[] gamma = null;
 		double[] deltaRoot = null;
-		double[] prior = new double[1];
-		prior[0] = 1;
-		Node rootNode = null;
-		Vector<Node> messages = new Vector<Node>();
-		Hashtable<Node, double[]> gammaList = new Hashtable<Node, double[]>();
-		Hashtable<Node, double[]> deltaList = new Hashtable<Node, double[]>();
+		int len = pfx.getRows();
+
+		if (messages == null || messages.numNodes() != tree.size() || messages.width() != len)
+			messages = new PhylogenyMessages(tree.size(), len);
+		else
+			messages.clear();
 
 		// bee bmc added line
 		// precompute the matrix exponential
 		pfx.buildMarkovTransitionRateMatrix();
 
+		if (branchGridRatio > 0)
+			System.out.println("Branch length grid: transition probabilities within "
+			                   + getBranchGridErrorBound(pfx, scaleParams) + " of exact");
+
+		pfx.setStatePriors(getStatePriors(pfx));
+
+		pfx.precomputeMatrixExps(getEdgeScalings(scaleParams), pool);
+		lastPfx = pfx;
+		lastScaleParams = new Hashtable<String, Double>(scaleParams);
+
+		// node ordinals are positions in the tree
+		PhylogenyTopology topo = getTopology();
+
+		InferenceScratch s = scratch(pfx);
+
 		//Get children with evidence first.
-		//since the tree is constructed depth first,
-		//this should be the correct way to go through the tree.
 		for (int node = tree.size() - 1; node >= 0; node--) {
 			// Get the name of the node
 			Node n = tree.elementAt(node);
-			Node parent = n.getParent();
-			//if (parent !=null){
-			//	System.out.println("good");
-			//}
-			if (n == null) {
-				System.out.println("Can't find node in getNewNodeSampleFinal");
-			}
 
 			//Case 1: Leaf with evidence
 			//sample directly from those local probabilities
 
 			//System.out.println(node+","+n.getNodeID()+","+n.hasLocalProbabilities()+","+n.isLeaf());
 			
-			if (n.hasLocalProbabilities() && n.isLeaf()) {
-				evidenceProbs = n.getLocalProbabilities();
+			// with evidence or without
+			if (n.isLeaf()) {
+				setLeafGamma(node, s);
+				//System.out.println("Added gamma for: "+n.getNodeID());
+			}
+		}// end of initial leaf search
 
-				for (int i = 0; i < evidenceProbs.length; i++) {
-					if (evidenceProbs[i] > 0) {
-						evidenceProbs[i] = logSafe(evidenceProbs[i]);
-					}
-				}
+		InferenceScratch.release(s);
 
-				gammaList.put(n, evidenceProbs);
-				messages.add(n);
-				
-				
-				//System.out.println("Added gamma for: "+n.getNodeID());
-			} // end of leaf with evidence
+		// Propagating up to the root, children before parents. Disjoint
+		// subtrees are independent, so large ones are done in parallel.
+		pool.invoke(new GammaTask(pfx, scaleParams, topo, topo.root));
+
+		if (!topo.isLeaf(topo.root)) {
+			deltaRoot = new double[len];
+
+			for (int r = 0; r < len; r++)
+				deltaRoot[r] = 1.0;
+
+			messages.setDelta(topo.root, deltaRoot);
+		}
+
+		// Propagating down from root, parents before children. Once a
+		// node's delta is known its children's deltas are independent.
+		pool.invoke(new DeltaTask(pfx, scaleParams, topo, topo.root));
+
+		//Have gamma/delta. Multiply the two vectors and normalize
+		if (posteriorTable == null || posteriorTable.size() != tree.size())
+			posteriorTable = new Hashtable<Node, double[]>();
+
+		for (int node = tree.size() - 1; node >= 0; node--) {
+			posteriorForNode(node);
+		}
+
+		return posteriorTable;
+	}
+
+	// Sets the gamma of a leaf from its evidence, or to the prior if it
+	// has none. The evidence is copied, not logged in place; a 0 was
+	// never logged, so it has always counted as 1.
+	private void setLeafGamma(int node, InferenceScratch s) {
+		Node n = tree.elementAt(node);
+
+		if (!hasEvidence(node)) {
+			messages.setPriorGamma(node);
+			return;
+		}
+
+		double[] evidenceProbs = n.getLocalProbabilities();
+
+		for (int i = 0; i < messages.width(); i++) {
+			if (evidenceProbs[i] > 0)
+				s.gamma[i] = evidenceProbs[i];
 			else
-				if (n.isLeaf()) {
-					gammaList.put(n, prior);
-					messages.add(n);
-					//if(verbose)
-					// System.out.println("Added gamma for; "+n.getNodeID());
-				} // end of leaf without evidence
-		}// end of initial leaf search
+				s.gamma[i] = 1.0;
+		}
 
-		while (!messages.isEmpty()) {
-			boolean done = false;
-			int count = 0;
+		messages.setGamma(node, s.gamma);
+	}
 
-			while (!done && messages.size() > 0) {
-				count = (count + 1) % messages.size();
-				//bee good debug line
-				//System.out.print("Messages left gamma ("+count+") ");
-				//for(int i = 0; i < messages.size(); i++){
-				//	System.out.print(((Node)messages.elementAt(i)).getNodeID()+" ");
-				//}
-				//System.out.println();
-				Node parent = messages.elementAt(count).getParent();
+	// Combines the node's gamma and delta into its entry of the
+	// posterior table
+	private double[] posteriorForNode(int node) {
+		Node n = tree.elementAt(node);
+		double[] posterior = posteriorTable.get(n);
 
-				if (parent != null) {
-					Vector<Node> children = (Vector<Node>)parent.getChildren();
+		if (posterior == null || posterior.length != messages.width()) {
+			posterior = new double[messages.width()];
+			posteriorTable.put(n, posterior);
+		}
 
-					if (messagesContainsAllChildren(messages, children)) {
-						double inUse = ((Double)scaleParams.get(SPECIATION_PARAMS)).doubleValue();
+		gammaDeltaBinary(messages, node, posterior);
+		messages.setPosterior(node, posterior);
+		return posterior;
+	}
 
-						if (parent.hasDuplication())
-							inUse = ((Double)scaleParams.get(DUPLICATION_PARAMS)).doubleValue();
+	/**
+	 * Replaces the evidence of a protein (null removes it) and updates
+	 * the messages of the last full propagation to match, with the
+	 * same model and scalings. Only the gammas on the path from the
+	 * protein's leaf to the root are recomputed; the deltas of that
+	 * path do not depend on the leaf and stay as they are. Every other
+	 * delta, and every posterior, is marked out of date and is worked
+	 * out again by getPosterior when it is asked for.
+	 * @param protein ID of the leaf (or leaves) to change
+	 * @param likelihoods the new evidence, one entry per function
+	 * @return false if there has been no full propagation or no leaf
+	 * has that ID
+	 */
+	public boolean updateEvidence(String protein, double[] likelihoods) {
+		if (messages == null || lastPfx == null) {
+			System.out.println("Error: updateEvidence needs a full propagation first");
+			return false;
+		}
 
-						//System.out.println("Working on "+parent.getNodeID());
-						gamma = gammaPropBinaryExp(gammaList, children,
-						                           pfx, inUse);
+		Vector<Node> ns = getNodes(protein);
+		PhylogenyTopology topo = getTopology();
+		InferenceScratch s = scratch(lastPfx);
+		boolean found = false;
 
-						if (gamma.length == 1)
-							gamma = prior;
+		for (int i = 0; i < ns.size(); i++) {
+			Node n = ns.elementAt(i);
 
-						messages.removeAll(children);
+			if (!n.isLeaf())
+				continue;
 
-						if (!parent.isRoot()) {
-							gammaList.put(parent, gamma);
-							messages.add(parent);
-							//if(verbose)
-							//System.out.println("Added gamma for "+parent.getNodeID());
-						}
-						else { // For the root
-							gammaList.put(parent, gamma);
-							deltaRoot = new double[gamma.length];
-
-							for (int r = 0; r < gamma.length; r++)
-								deltaRoot[r] = 0.0;
-
-							deltaList.put(parent, deltaRoot);
-							//if(verbose)
-							//System.out.println("Added gamma for root"+gamma);
-							messages.clear();
-							rootNode = parent;
-							done = true;
-						}
-					} // finished that message
-				}
+			found = true;
+
+			if (likelihoods == null)
+				n.removeLocalProbabilities();
+			else
+				n.setLocalProbabilities(likelihoods);
+
+			// only the deltas of nodes above this leaf, of all the
+			// leaves changed so far, are still current
+			messages.newEvidence();
+			int v = n.getOrdinal();
+			setLeafGamma(v, s);
+			messages.keepDelta(v);
+
+			for (v = topo.parent[v]; v >= 0; v = topo.parent[v]) {
+				gammaForNode(lastPfx, lastScaleParams, topo, v, s);
+				messages.keepDelta(v);
 			}
 		}
 
-		// Propagating down from root.
-		messages.add(rootNode);
+		InferenceScratch.release(s);
+		return found;
+	}
 
-		while (!messages.isEmpty()) {
-			// bee helpful debug line
-			//System.out.print("Messages left delta ("+messages.size()+") ");
-			//for(int i = 0; i < messages.size(); i++) {
-			//	System.out.print(((Node)messages.elementAt(i)).getNodeID()+" ");
-			//}
-			//System.out.println();
-			// bee end helpful debug line
+	/**
+	 * The posterior of a protein, as of the latest evidence. Deltas
+	 * made out of date by updateEvidence are recomputed from the
+	 * nearest ancestor whose delta is current down to the protein's
+	 * leaf, and no further.
+	 * @param protein ID of the leaf
+	 * @return the posterior (the array in the table returned by
+	 * propagateExactThroughoutTree), or null if there is no such leaf
+	 * or no propagation has been run
+	 */
+	public double[] getPosterior(String protein) {
+		Node n = getNode(protein);
 
-			Node parent = messages.elementAt(0);
-			Vector<Node> children = parent.getChildren();
-			double inUse = ((Double)scaleParams.get(SPECIATION_PARAMS)).doubleValue();
+		if (n == null || messages == null || lastPfx == null)
+			return null;
 
-			if (parent.hasDuplication())
-				inUse = ((Double)scaleParams.get(DUPLICATION_PARAMS)).doubleValue();
-
-			for (int i = 0; i < children.size(); i++) {
-				double[] delta0;
-				delta0 = deltaPropBinaryExp(gammaList, children,
-				                            children.elementAt(i),
-				                            pfx, inUse,
-				                            deltaList.get(parent));
-				deltaList.put(children.elementAt(i), delta0);
-				//if(verbose)
-				//	System.out.println("Added delta for "
-				//	                   + children.elementAt(i).getNodeID());
-
-				if (!children.elementAt(i).isLeaf())
-					messages.add(children.elementAt(i));
-			}
+		int node = n.getOrdinal();
 
-			messages.remove(parent);
+		if (!messages.isPosteriorCurrent(node)) {
+			InferenceScratch s = scratch(lastPfx);
+			updateDelta(getTopology(), node, s);
+			InferenceScratch.release(s);
+			posteriorForNode(node);
 		}
 
-		//Have gamma/delta. Multiply the two vectors and normalize
-		Hashtable<Node, double[]> posteriors = new Hashtable<Node, double[]>();
+		return posteriorTable.get(n);
+	}
+
+	/**
+	 * The posteriors of every node as of the latest evidence, bringing
+	 * any deltas and posteriors made out of date by updateEvidence up
+	 * to date first. This is a downward pass only; the gammas are kept.
+	 * @return the table returned by propagateExactThroughoutTree
+	 */
+	public Hashtable<Node, double[]> getPosteriors() {
+		if (messages == null || lastPfx == null)
+			return null;
+
+		PhylogenyTopology topo = getTopology();
+		InferenceScratch s = scratch(lastPfx);
+
+		// parents before children, so each parent's delta is current
+		// by the time its children need it
+		for (int i = 0; i < topo.preOrder.length; i++) {
+			int v = topo.preOrder[i];
+			boolean current = true;
+
+			for (int c = topo.firstChild[v]; c >= 0; c = topo.nextSibling[c])
+				current = current && messages.isDeltaCurrent(c);
+
+			if (!current)
+				deltasForChildren(lastPfx, lastScaleParams, topo, v, s);
+		}
+
+		InferenceScratch.release(s);
 
 		for (int node = tree.size() - 1; node >= 0; node--) {
-			Node n = tree.elementAt(node);
-			System.out.println("Pringing out "+n.getNodeID()); // TODO
-			posteriors.put(n, gammaDeltaBinaryLog(gammaList.get(n),
-			                                      deltaList.get(n)));
+			if (!messages.isPosteriorCurrent(node))
+				posteriorForNode(node);
 		}
 
-		gammasFinal = gammaList;
-		deltasFinal = deltaList;
-		return posteriors;
+		return posteriorTable;
 	}
 
-	// delta is defined as exp{-\sum{ \theta_{m,n}^{d_i} x_{\pi_i}^m}
-	private double[] deltaPropBinaryExp(Hashtable<Node, double[]> gammaList,
-	                                    Vector<Node> children, Node node,
-	                                    GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
-	                                    double scale_param,
-	                                    double[] delta1) {
-		int len2 = delta1.length;
-		double[] delta = new double[len2];
-		double[] notDelta = new double[len2];
-		double distance = node.getParentDistance();
-		ProteinFunctionMarkovState psParent = new ProteinFunctionMarkovState(len2, pfx.maxFunctions());
-		double[] gammaParent = new double[len2];
-		// product over sums of gamma functions
-		// to incorporate siblings annotations
-		int index = children.indexOf(node);
-		children.remove(index);
-		//System.out.println("Distance: "+distance+", rate: "
-		//		   +scale_param+", yn: "+ pfx.getDelta(1,1));
-		gammaParent = gammaPropBinaryExp(gammaList, children,
-		                                 pfx, scale_param);
-		children.add(index, node);
+	/**
+	 * The posterior a leaf would have without its own evidence, all
+	 * other evidence and the model being as they are. A node's delta
+	 * only depends on the evidence outside its subtree, so this is the
+	 * leaf's delta alone and needs no further propagation; it is what
+	 * leave-one-out cross-validation predicts for the leaf.
+	 * @param n a leaf of this tree
+	 * @return a new array, or null if no propagation has been run
+	 */
+	public double[] getLeaveOneOutPosterior(Node n) {
+		if (messages == null || lastPfx == null)
+			return null;
+
+		int node = n.getOrdinal();
+
+		if (!messages.isDeltaCurrent(node)) {
+			InferenceScratch s = scratch(lastPfx);
+			updateDelta(getTopology(), node, s);
+			InferenceScratch.release(s);
+		}
+
+		double[] posterior = new double[messages.width()];
+
+		for (int i = 0; i < posterior.length; i++)
+			posterior[i] = messages.getDelta(node, i);
+
+		return posterior;
+	}
+
+	// Brings the delta of node up to date, recomputing the deltas on
+	// the path down to it from its nearest ancestor with a current one
+	private void updateDelta(PhylogenyTopology topo, int node, InferenceScratch s) {
+		int depth = 0;
+
+		for (int v = node; !messages.isDeltaCurrent(v) && topo.parent[v] >= 0; v = topo.parent[v])
+			depth++;
+
+		int[] path = new int[depth];
+		int v = node;
+
+		for (int i = depth - 1; i >= 0; i--) {
+			v = topo.parent[v];
+			path[i] = v;
+		}
+
+		// path[0] has a current delta; each parent in turn gives its
+		// children theirs
+		for (int i = 0; i < depth; i++)
+			deltasForChildren(lastPfx, lastScaleParams, topo, path[i], s);
+	}
+
+	// Computes and stores the gamma of internal node v from the gammas
+	// of its children.
+	private void gammaForNode(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
+	                          Hashtable<String, Double> scaleParams, PhylogenyTopology topo, int v,
+	                          InferenceScratch s) {
+		Node parent = tree.elementAt(v);
+		Vector<Node> children = parent.getChildren();
+		double inUse = ((Double)scaleParams.get(SPECIATION_PARAMS)).doubleValue();
+
+		if (topo.duplication[v])
+			inUse = ((Double)scaleParams.get(DUPLICATION_PARAMS)).doubleValue();
+
+		//System.out.println("Working on "+parent.getNodeID());
+		if (gammaPropBinaryExp(messages, children, pfx, inUse, s)) {
+			messages.setGamma(v, s.gamma);
+			messages.setScale(v, s.scale, s.scaleExponent);
+		}
+		else
+			messages.setPriorGamma(v);
+	}
+
+	/**
+	 * The log of the product of every normaliser divided out of the
+	 * gammas in the last propagation, that is the log likelihood of
+	 * the evidence as the upward pass works it out, each function
+	 * normalised on its own. It is accumulated exactly from the
+	 * scale of each node, so it does not underflow on deep trees.
+	 * @return the log likelihood, 0 if there was no evidence
+	 */
+	public double getLogLikelihood() {
+		PhylogenyTopology topo = getTopology();
+
+		if (messages == null || topo.root < 0)
+			return 0.0;
 
-		if (gammaParent.length == 1) {
-			gammaParent = new double[len2];
+		return messages.getLogScale(topo.root);
+	}
+
+	// work buffers sized for pfx; give them back with
+	// InferenceScratch.release
+	private static InferenceScratch scratch(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx) {
+		return InferenceScratch.acquire(pfx.getRows(), pfx.getStateIndex().size());
+	}
+
+	/**
+	 * Computes the gammas of a subtree: the subtrees of the children
+	 * are forked, then the root of the subtree is done once they have
+	 * joined. Subtrees below the threshold are walked in post-order
+	 * in this thread. Each gamma only depends on those of its children,
+	 * so the result is the same as the sequential pass.
+	 */
+	private class GammaTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx;
+		private Hashtable<String, Double> scaleParams;
+		private PhylogenyTopology topo;
+		private int v;
+
+		GammaTask(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject p,
+		          Hashtable<String, Double> s, PhylogenyTopology t, int node) {
+			pfx = p;
+			scaleParams = s;
+			topo = t;
+			v = node;
+		}
+
+		protected void compute() {
+			if (topo.isLeaf(v))
+				return;
+
+			if (topo.subtreeSize[v] < parallelThreshold) {
+				// the subtree backwards in pre-order is a post-order
+				int start = topo.prePosition[v];
+				InferenceScratch s = scratch(pfx);
+
+				for (int i = start + topo.subtreeSize[v] - 1; i >= start; i--) {
+					int u = topo.preOrder[i];
 
-			for (int i = 0; i < gammaParent.length; i++) {
-				gammaParent[0] = 0.0; // log of 1
+					if (!topo.isLeaf(u))
+						gammaForNode(pfx, scaleParams, topo, u, s);
+				}
 
+				InferenceScratch.release(s);
+				return;
 			}
 
+			Vector<GammaTask> tasks = new Vector<GammaTask>();
+
+			for (int c = topo.firstChild[v]; c >= 0; c = topo.nextSibling[c]) {
+				if (!topo.isLeaf(c))
+					tasks.add(new GammaTask(pfx, scaleParams, topo, c));
+			}
+
+			invokeAll(tasks);
+			InferenceScratch s = scratch(pfx);
+			gammaForNode(pfx, scaleParams, topo, v, s);
+			InferenceScratch.release(s);
 		}
+	}
 
-		// incorporate deltas of parent in position-appropriate way.
-		while (psParent.hasNext()) {
-			psParent.getNextNonZeros();
-			double[] deltaScale = new double[delta.length];
-			double[] deltaNotScale = new double[delta.length];
+	// Computes and stores the deltas of the children of internal node
+	// v from its delta. Each child needs the gamma of v from its
+	// siblings alone; this is the product of the other children's
+	// edge factors, taken from prefix and suffix products over the
+	// children so that each costs O(F) rather than O(k F).
+	private void deltasForChildren(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
+	                               Hashtable<String, Double> scaleParams, PhylogenyTopology topo, int v,
+	                               InferenceScratch s) {
+		Node parent = tree.elementAt(v);
+		Vector<Node> children = parent.getChildren();
+		double inUse = ((Double)scaleParams.get(SPECIATION_PARAMS)).doubleValue();
+
+		if (topo.duplication[v])
+			inUse = ((Double)scaleParams.get(DUPLICATION_PARAMS)).doubleValue();
+
+		int len = messages.width();
+		int w = 2 * len;
+		int k = children.size();
+		s.ensureChildren(k);
+		// edge factors of each child, if its gamma is used; prefix row
+		// i is their product over the children before i and suffix row
+		// i over i and after, with (first len) and without each function
+		double[] factors = s.factors;
+		double[] prefix = s.prefix;
+		double[] suffix = s.suffix;
+		double[] gammaSiblings = s.gammaSiblings;
+		int numInformative = 0;
+
+		for (int j = 0; j < w; j++) {
+			prefix[j] = 1.0;
+			suffix[k * w + j] = 1.0;
+		}
+
+		for (int i = 0; i < k; i++) {
+			s.informative[i] = hasGammaFactors(messages, children.elementAt(i).getOrdinal());
+
+			if (s.informative[i]) {
+				numInformative++;
+				edgeGammaFactors(messages, children.elementAt(i), pfx, inUse, s);
+				System.arraycopy(s.sums, 0, factors, i * w, w);
+
+				for (int j = 0; j < w; j++)
+					prefix[(i + 1) * w + j] = prefix[i * w + j] * factors[i * w + j];
+
+				rescale(prefix, (i + 1) * w, len);
+			}
+			else
+				System.arraycopy(prefix, i * w, prefix, (i + 1) * w, w);
+		}
 
-			for (int j = 0; j < deltaScale.length; j++) {
-				deltaScale[j] = 1.0;
-				deltaNotScale[j] = 1.0;
+		for (int i = k - 1; i >= 0; i--) {
+			if (s.informative[i]) {
+				for (int j = 0; j < w; j++)
+					suffix[i * w + j] = factors[i * w + j] * suffix[(i + 1) * w + j];
+
+				rescale(suffix, i * w, len);
 			}
+			else
+				System.arraycopy(suffix, (i + 1) * w, suffix, i * w, w);
+		}
 
-			double deltaProd = 1.0;
+		for (int i = 0; i < k; i++) {
+			int siblings = numInformative - (s.informative[i] ? 1 : 0);
 
-			for (int i = 0; i < psParent.length(); i++) {
-				// incorporate delta of parent
-				if (psParent.elementAt(i) == 1) {
-					deltaProd *= Math.exp(delta1[i]) * Math.exp(gammaParent[i]);
+			for (int j = 0; j < len; j++) {
+				if (siblings == 0) {
+					gammaSiblings[j] = 1.0;
+					continue;
 				}
-				else {
-					double negGammaParent = 1 - Math.exp(gammaParent[i]);
 
-					if (negGammaParent <= 0.0)
-						negGammaParent = 1.0;
+				double g = prefix[i * w + j] * suffix[(i + 1) * w + j];
+				double gNot = prefix[i * w + len + j] * suffix[(i + 1) * w + len + j];
+				gammaSiblings[j] = g / (g + gNot);
+			}
 
-					double negDelta1 = 1 - Math.exp(delta1[i]);
+			deltaPropBinaryExp(messages, gammaSiblings,
+			                   children.elementAt(i),
+			                   pfx, inUse, v, s);
+			messages.setDelta(children.elementAt(i).getOrdinal(), s.delta);
+			//if(verbose)
+			//	System.out.println("Added delta for "
+			//	                   + children.elementAt(i).getNodeID());
+		}
+	}
+
+	// Scales up each pair of with/without products in the row of
+	// prefix or suffix products at o, once both have got small. Only
+	// their ratio is used, so the scale need not be kept.
+	private static void rescale(double[] row, int o, int len) {
+		for (int j = 0; j < len; j++) {
+			if (row[o + j] < RESCALE_BELOW && row[o + len + j] < RESCALE_BELOW) {
+				row[o + j] = Math.scalb(row[o + j], RESCALE_BITS);
+				row[o + len + j] = Math.scalb(row[o + len + j], RESCALE_BITS);
+			}
+		}
+	}
+
+	/**
+	 * Computes the deltas below the root of a subtree, whose own delta
+	 * is already known: first those of its children, then the subtrees
+	 * of the children are forked. Subtrees below the threshold are
+	 * walked in pre-order in this thread. A delta depends only on the
+	 * parent's delta and the siblings' gammas, which are not changed,
+	 * so the result is the same as the sequential pass.
+	 */
+	private class DeltaTask extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+		private GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx;
+		private Hashtable<String, Double> scaleParams;
+		private PhylogenyTopology topo;
+		private int v;
+
+		DeltaTask(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject p,
+		          Hashtable<String, Double> s, PhylogenyTopology t, int node) {
+			pfx = p;
+			scaleParams = s;
+			topo = t;
+			v = node;
+		}
+
+		protected void compute() {
+			if (topo.isLeaf(v))
+				return;
+
+			InferenceScratch s = scratch(pfx);
 
-					if (negDelta1 <= 0.0)
-						negDelta1 = 1.0;
+			if (topo.subtreeSize[v] < parallelThreshold) {
+				int start = topo.prePosition[v];
 
-					deltaProd *= negDelta1 * negGammaParent;
+				for (int i = start; i < start + topo.subtreeSize[v]; i++) {
+					int u = topo.preOrder[i];
+
+					if (!topo.isLeaf(u))
+						deltasForChildren(pfx, scaleParams, topo, u, s);
 				}
 
-				//System.out.println("Deltaprod: "+deltaProd+", "
-				//		   +Math.exp(delta1[i])+", "
-				//		   +Math.exp(gammaParent[i]));
+				InferenceScratch.release(s);
+				return;
 			}
 
-			// incorporate deltas of parent in position-appropriate way.
-			//psParent.printPowerSet();
-			for (int j = 0; j < delta.length; j++) {
-				double scale = probChildGivenParentME(1, j,
-				                                      psParent, pfx,
-				                                      distance,
-				                                      scale_param);
-				deltaScale[j] *= scale * deltaProd;
-				deltaNotScale[j] *= (1.0 - scale) * deltaProd;
-				//System.out.println("Scale ("+j+"): "+scale);
+			deltasForChildren(pfx, scaleParams, topo, v, s);
+			InferenceScratch.release(s);
+			Vector<DeltaTask> tasks = new Vector<DeltaTask>();
+
+			for (int c = topo.firstChild[v]; c >= 0; c = topo.nextSibling[c]) {
+				if (!topo.isLeaf(c))
+					tasks.add(new DeltaTask(pfx, scaleParams, topo, c));
 			}
 
-			// Sum over all possible parents
-			for (int j = 0; j < delta.length; j++) {
-				delta[j] += deltaScale[j];
-				notDelta[j] += deltaNotScale[j];
-				deltaScale[j] = 1.0;
-				deltaNotScale[j] = 1.0;
+			invokeAll(tasks);
+		}
+	}
+
+	// delta is defined as exp{-\sum{ \theta_{m,n}^{d_i} x_{\pi_i}^m}
+	// The parent's delta is read from the messages at parentNode, and
+	// gammaParent is the parent's gamma from node's siblings.
+	// The delta of node is left in s.delta.
+	private void deltaPropBinaryExp(PhylogenyMessages messages,
+	                                double[] gammaParent, Node node,
+	                                GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
+	                                double scale_param,
+	                                int parentNode, InferenceScratch s) {
+		int len2 = messages.width();
+		double[] delta1 = messages.deltas();
+		int p = messages.offset(parentNode);
+		double[] delta = s.delta;
+		double[] notDelta = s.notDelta;
+		double distance = node.getParentDistance();
+		ProteinFunctionStateIndex index = pfx.getStateIndex();
+		LAPACKMatrixOperationsWrapper summary = pfx.getExpSummaryMatrix(distance * scale_param);
+		//System.out.println("Distance: "+distance+", rate: "
+		//		   +scale_param+", yn: "+ pfx.getDelta(1,1));
+
+		// the parent's delta and sibling gamma for each function,
+		// present and absent, are the same for every parent state
+		for (int i = 0; i < len2; i++) {
+			delta[i] = 0.0;
+			notDelta[i] = 0.0;
+			s.present[i] = delta1[p + i] * gammaParent[i];
+			double negGammaParent = 1 - gammaParent[i];
+
+			if (negGammaParent <= 0.0)
+				negGammaParent = 1.0;
+
+			double negDelta1 = 1 - delta1[p + i];
+
+			if (negDelta1 <= 0.0)
+				negDelta1 = 1.0;
+
+			s.absent[i] = negDelta1 * negGammaParent;
+		}
+
+		// incorporate deltas of parent in position-appropriate way,
+		// over the nonempty parent states
+		for (int ps = 1; ps < index.size(); ps++) {
+			double deltaProd = stateProduct(index.functions(ps), s.present, s.absent);
+
+			for (int j = 0; j < len2; j++) {
+				double scale = probChildGivenParentME(1, j, ps, summary);
+				// Sum over all possible parents
+				delta[j] += scale * deltaProd;
+				notDelta[j] += (1.0 - scale) * deltaProd;
+				//System.out.println("Scale ("+j+"): "+scale);
 			}
 		} // done with all possible parents
 
-		// normalize, log
-		for (int j = 0; j < delta.length; j++) {
+		// normalize
+		for (int j = 0; j < len2; j++) {
 			//System.out.println("Delta (from parent): "+delta[j]
 			// +", not delta: "+notDelta[j]);
-			delta[j] = logSafe(delta[j] / (delta[j] + notDelta[j]));
-			//System.out.println("total (from parent):"+Math.exp(delta[j]));
+			delta[j] = delta[j] / (delta[j] + notDelta[j]);
+			//System.out.println("total (from parent):"+delta[j]);
 		}
-
-		return delta;
 	}
 
 
@@ -1279,152 +1855,122 @@ public class ProbabilisticReconciledPhylogenyObject {
 
 	// The conditional probabilities in the model are
 	// computed here.
-	// Takes the exponentiated matrix (with rate and distance)
-	// and returns the appropriate index.
+	// Takes the summary of the exponentiated matrix (with rate and
+	// distance) and returns the appropriate index.
 	private double probChildGivenParentME(int child, int functionIndex,
-	                                      ProteinFunctionMarkovState parentsSet,
-	                                      GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
-	                                      double rate, double distance) {
-		if (child == 1) {
-			return pfx.getExpProb(parentsSet.setIndex(), functionIndex,
-			                      rate, distance);
-		}
+	                                      int parentState,
+	                                      LAPACKMatrixOperationsWrapper summary) {
+		double p = GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject
+		           .getExpProb(summary, parentState, functionIndex);
+
+		if (child == 1)
+			return p;
 		else
-			return (1.0 - pfx.getExpProb(parentsSet.setIndex(), functionIndex,
-			                             rate, distance));
+			return (1.0 - p);
 	}
 
-	/* Computes gamma for a single node
-	 */
-	private double[] gammaPropBinaryExp(Hashtable<Node, double[]> gammaList,
-	                                    Vector<Node> children, GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
-	                                    double scale) {
-		Vector<double[]> gammaSet = new Vector<double[]>();
-		ProteinFunctionMarkovState ps = null;
-		double distance = 0.0;
-		Vector<Node> prunedChildren = new Vector<Node>();
-
-		// pull out children with interesting gammas
-		for (int i = 0; i < children.size(); i++) {
-			Node child = children.elementAt(i);
-			double[] gammaChild = gammaList.get(child);
-
-			if (gammaChild.length > 1 && gammaChild[0] <= 0) {
-				gammaSet.add(gammaChild);
-				prunedChildren.add(child);
-				//System.out.println("  Adding:	"+child.getNodeID());
-			}
-		}
+	// true if the child's gamma takes part in its parent's gamma
+	private boolean hasGammaFactors(PhylogenyMessages messages, int c) {
+		return messages.isGammaInformative(c) && messages.getGamma(c, 0) <= 1.0;
+	}
 
-		// If interesting gamma children list is size 0,
-		// exit, setting gamma to uninteresting.
-		if (gammaSet.size() == 0) {
-			double[] gamma = new double[1];
-			gamma[0] = 1.0;
-			return gamma;
-		}
+	// The factors the edge above child contributes to its parent's
+	// gamma, left in s.sums: sums[j] sums p(X_{\pi i}|x_i)p(x_i|D_i)
+	// over the child states x_i for the parent having function j,
+	// sums[F+j] for it not having j. The first term is the parent
+	// summary of the edge and the second comes from the child's gamma,
+	// so over all child states this is one product of the summary
+	// (transposed) with the vector of p(x_i|D_i), built in s.weights.
+	private void edgeGammaFactors(PhylogenyMessages messages, Node child,
+	                              GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
+	                              double scale, InferenceScratch s) {
+		double[] gammas = messages.gammas();
+		int len0 = messages.width();
+		ProteinFunctionStateIndex index = pfx.getStateIndex();
+		int S = index.size();
+		int gammaj = messages.offset(child.getOrdinal());
+		LAPACKMatrixOperationsWrapper summary = pfx.getParentSummary(scale * child.getParentDistance());
+
+		System.arraycopy(gammas, gammaj, s.childTerm, 0, len0);
+
+		// the empty child state is not summed over
+		s.weights[0] = 0.0;
+
+		for (int c = 1; c < S; c++)
+			s.weights[c] = statePosterior(index.functions(c), s.childTerm);
+
+		summary.transposeTimes(s.weights, s.sums);
+	}
 
-		// gammaSet.size() >= 1 now, get length of gamma
-		int len0 = gammaSet.elementAt(0).length;
-		double[] gamma = new double[len0];
-		double[] gammaNot = new double[len0];
-		double[] gammaSum = new double[len0];
-		double[] gammaNotSum = new double[len0];
-		ps = new ProteinFunctionMarkovState(len0, pfx.maxFunctions());
+	/* Computes gamma for a single node into s.gamma, and its scale
+	 * (its children's times the normalisers divided out here) into
+	 * s.scale and s.scaleExponent; returns false, leaving them unset,
+	 * if none of the children has an informative gamma
+	 */
+	private boolean gammaPropBinaryExp(PhylogenyMessages messages,
+	                                   Vector<Node> children, GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
+	                                   double scaleParam, InferenceScratch s) {
+		int len0 = messages.width();
+		double[] gamma = s.gamma;
+		double[] gammaNot = s.gammaNot;
+		double[] sums = s.sums;
+		double scale = 1.0;
+		int exponent = 0;
+		int used = 0;
 
 		for (int i = 0; i < gamma.length; i++) {
 			gamma[i] = 1.0;
-			gammaSum[i] = 0.0;
-		}
-
-		// for each possible values over all of the children i
-		// sum over p(X_{\pi i}|x_i)p(x_i|D_i)
-		// where the first expression is a function computed
-		// elsewhere, and the second is gamma.
-		//ProteinFunctionMarkovState psChildren = new ProteinFunctionMarkovState(gammaSet.size(), len0);
-		ProteinFunctionMarkovState psChildren = new ProteinFunctionMarkovState(len0, pfx.maxFunctions());
-		double[] gammaTemp = new double[len0];
-		double[] gammaTempNot = new double[len0];
-
-		for (int i = 0; i < gamma.length; i++) {
-			gammaNot[i] = gamma[i];
-			gammaNotSum[i] = gammaSum[i];
+			gammaNot[i] = 1.0;
 		}
 
-		Vector<Node> child = new Vector<Node>();
-
-		for (int k = 0; k < prunedChildren.size(); k++) {
-			psChildren.Reset();
-			child.clear();
-			child.add(prunedChildren.elementAt(k));
-			distance =
-			  prunedChildren.elementAt(k).getParentDistance();
-
-			while (psChildren.hasNext()) {
-				psChildren.getNextNonZeros();
-				//System.out.print("Child: ");
-				//psChildren.printPowerSet();
-
-				probParentsGivenKidsME(gammaTemp, child,
-				                       psChildren, pfx, scale, distance);
-
-				for (int i = 0; i < gammaTemp.length; i++) {
-					gammaTempNot[i] = 1.0 - gammaTemp[i];
-					//System.out.println("Gamma temp"+i+", "+gammaTemp[i]);
-				}
-
-				// incorporate the gamma probabilities at the
-				// children nodes now
-				//System.out.println("gammaTemp: "+gammaTemp[0]+","
-				//		   +gammaTemp[1]);
-				for (int i = 0; i < gamma.length; i++) {
-					//System.out.println("\ni= "+i+" gamma ="
-					//+gammaTemp[i]+" notGamma = "+gammaTempNot[i]);
-					//psChildren.printPowerSet();
-					for (int j = 0; j < psChildren.length(); j++) {
-						double[] gammaj = gammaSet.elementAt(k);
-						double gammajTerm = 0;
-						gammajTerm =
-						  Math.exp(gammaj[psChildren.functionIndex(j)]);
-
-						if (psChildren.elementAt(j) == 1) {
-							gammaTemp[i] *= (gammajTerm);
-							gammaTempNot[i] *= gammajTerm;
-						}
-						else {
-							gammaTemp[i] *= (1.0 - gammajTerm);
-							gammaTempNot[i] *= (1.0 - gammajTerm);
-						}
-
-						//System.out.println("gammajterm: "+gammajTerm);
-					}
+		// only children with interesting gammas take part
+		for (int k = 0; k < children.size(); k++) {
+			Node child = children.elementAt(k);
 
-					//System.out.println("i="+i+", GammaTemp: "+gammaTemp[i]+", gammaTempNot: "+gammaTempNot[i]);
-					gammaSum[i] += gammaTemp[i];
-					gammaNotSum[i] += gammaTempNot[i];
-				}
+			if (!hasGammaFactors(messages, child.getOrdinal()))
+				continue;
 
-				//psChildren.printPowerSet();
-				ps.getNext();
-			} // done with the while loop over all children settings
+			used++;
+			edgeGammaFactors(messages, child, pfx, scaleParam, s);
+			scale *= messages.getScaleMantissa(child.getOrdinal());
+			exponent += messages.getScaleExponent(child.getOrdinal());
 
 			for (int i = 0; i < gamma.length; i++) {
-				gamma[i] *= gammaSum[i];
-				gammaNot[i] *= gammaNotSum[i];
-				//System.out.println("For child "+k+",gammaSum "+gammaSum[i]+" gammaNotSum "+gammaNotSum[i]+" distance "+distance);
-				//System.out.println("   and "+i+", gamma "+gamma[i]+" gammaNot "+gammaNot[i]);
-				gammaSum[i] = 0.0;
-				gammaNotSum[i] = 0.0;
+				gamma[i] *= sums[i];
+				gammaNot[i] *= sums[len0 + i];
+				//System.out.println("For child "+k+",gammaSum "+sums[i]+" gammaNotSum "+sums[len0 + i]);
+
+				if (gamma[i] < RESCALE_BELOW && gammaNot[i] < RESCALE_BELOW) {
+					gamma[i] = Math.scalb(gamma[i], RESCALE_BITS);
+					gammaNot[i] = Math.scalb(gammaNot[i], RESCALE_BITS);
+					exponent -= RESCALE_BITS;
+				}
 			}
 		}// done with product over children
 
+		// If interesting gamma children list is size 0,
+		// exit, setting gamma to uninteresting.
+		if (used == 0)
+			return false;
+
 		for (int i = 0; i < gamma.length; i++) {
 			//System.out.println(" "+gamma[i]+" "+gammaNot[i]+"  "+(gamma[i]/(gamma[i]+gammaNot[i])));
-			gamma[i] = logSafe(gamma[i] / (gamma[i] + gammaNot[i]));
+			double norm = gamma[i] + gammaNot[i];
+			gamma[i] = gamma[i] / norm;
+			scale *= norm;
+
+			// keep the mantissa near 1, moving its exponent out
+			int e = Math.getExponent(scale);
+
+			if (e > Double.MIN_EXPONENT && e < Double.MAX_EXPONENT) {
+				scale = Math.scalb(scale, -e);
+				exponent += e;
+			}
 		}
 
-		//if(gamma.length > 0) System.out.println();
-		return gamma;
+		s.scale = scale;
+		s.scaleExponent = exponent;
+		return true;
 	}
 
 
@@ -1477,109 +2023,65 @@ public class ProbabilisticReconciledPhylogenyObject {
 	}*/
 
 
-	// Compute the probability of the parent(s) given the kids.
-	// Denominator is p(K+,K-), numerator is p(P_i,K+,K-)
-	// This function is derived from heckerman90, equation 11,
-	// but assumes that the D variables are *not* mutually independent
-	// faster, not debugged.
-	private void probParentsGivenKidsME(double[] parents, Vector<Node> children,
-	                                    ProteinFunctionMarkovState psChildren,
-	                                    GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx, double rate,
-	                                    double distance) {
-		double[] negParents = new double[parents.length];
-
-		for (int i = 0; i < parents.length; i++) {
-			parents[i] = 0.0;
-			negParents[i] = 0.0;
-		}
-
-		// Iterate through this setting of kids
-		ProteinFunctionMarkovState parentsSet = new ProteinFunctionMarkovState(parents.length, pfx.maxFunctions());
-		double parentProd = 1.0;
-
-		while (parentsSet.hasNext()) {
-			parentsSet.getNext();
-			//parentsSet.printPowerSet();
-			// Product over all positive power set and all negative kids
-			parentProd = pfx.getExpProb(parentsSet.setIndex(),
-			                            psChildren.setIndex(),
-			                            rate * distance);
-			//System.out.println("parents set index: "+parentsSet.setIndex());
-			//System.out.println("Parent prod: "+parentProd);
-			// add onto the appropriate parent
-			parentProd *= getPrior(parentsSet);
-
-			for (int j = 0; j < parents.length; j++) {
-				if (parentsSet.elementAt(j) == 1) {
-					parents[j] += parentProd;
-					//System.out.println(" adding "+(parentProd)+" to "+j);
-				}
-				else {
-					negParents[j] += parentProd;
-					//System.out.println(" adding neg "+(parentProd)+" to "+j);
-				}
-			}
-		}
-
-		// Normalize the parent messages
-		for (int i = 0; i < parents.length; i++) {
-			//System.out.println("Parents: "+parents[i]);
-			parents[i] = parents[i] / (parents[i] + negParents[i]);
-		}
-	}
-
 	/**
+	 * Combines the gamma and delta of a node into its posterior.
 	 * @param messages
-	 * @param children
-	 * @return
+	 * @param node
+	 * @param posterior
 	 */
-	private boolean messagesContainsAllChildren(Vector<Node> messages,
-	    Vector<Node> children) {
-		for (int i = 0; i < children.size(); i++) {
-			if (!messages.contains(children.elementAt(i)))
-				return false;
-		}
-
-		return true;
-	}
-
-	/**
-	 * @param gamma
-	 * @param delta
-	 */
-	private double[] gammaDeltaBinaryLog(double[] gamma, double[] delta) {
-		double[] posterior = new double[delta.length];
-
-		if (gamma.length != delta.length) { // gamma was only a prior
-			for (int i = 0; i < delta.length; i++) {
-				posterior[i] = (Math.exp(delta[i]))
-				               / ((Math.exp(delta[i])) + (1 - Math.exp(delta[i])));
+	private void gammaDeltaBinary(PhylogenyMessages messages, int node, double[] posterior) {
+		double[] gamma = messages.gammas();
+		double[] delta = messages.deltas();
+		int o = messages.offset(node);
+		int len = messages.width();
+
+		if (!messages.isGammaInformative(node)) { // gamma was only a prior
+			for (int i = 0; i < len; i++) {
+				posterior[i] = delta[o + i] / (delta[o + i] + (1 - delta[o + i]));
 			}
 		}
 		else
-			if (delta[0] >= 0) { // in the case of the root node
-				for (int i = 0; i < gamma.length; i++) {
-					posterior[i] = (Math.exp(gamma[i]))
-					               / ((Math.exp(gamma[i])) + (1 - Math.exp(gamma[i])));
+			if (delta[o] >= 1.0) { // in the case of the root node
+				for (int i = 0; i < len; i++) {
+					posterior[i] = gamma[o + i] / (gamma[o + i] + (1 - gamma[o + i]));
 				}
 			}
 			else {
-				for (int i = 0; i < gamma.length && i < delta.length; i++) {
-					posterior[i] = Math.exp(gamma[i] + delta[i]) /
-					               (Math.exp(delta[i] + gamma[i]) +
-					                ((1 - Math.exp(gamma[i])) * (1 - Math.exp(delta[i]))));
+				for (int i = 0; i < len; i++) {
+					posterior[i] = (gamma[o + i] * delta[o + i]) /
+					               ((delta[o + i] * gamma[o + i]) +
+					                ((1 - gamma[o + i]) * (1 - delta[o + i])));
 				}
 			}
-
-		return posterior;
 	}
 
+	// Copies of the messages from the last propagation, by node
 	public Hashtable<Node, double[]> getGammas() {
-		return gammasFinal;
+		Hashtable<Node, double[]> gammas = new Hashtable<Node, double[]>();
+
+		for (int i = 0; messages != null && i < tree.size(); i++) {
+			if (messages.hasGamma(i))
+				gammas.put(tree.elementAt(i), messages.getGamma(i));
+		}
+
+		return gammas;
 	}
 
 	public Hashtable<Node, double[]> getDeltas() {
-		return deltasFinal;
+		Hashtable<Node, double[]> deltas = new Hashtable<Node, double[]>();
+
+		for (int i = 0; messages != null && i < tree.size(); i++) {
+			if (messages.hasDelta(i))
+				deltas.put(tree.elementAt(i), messages.getDelta(i));
+		}
+
+		return deltas;
+	}
+
+	// The messages themselves, indexed by node ordinal (see
+	// getTopology)
+	public PhylogenyMessages getMessages() {
+		return messages;
 	}
 
 	////////////////////////////////////////////////////
@@ -1933,18 +2435,18 @@ public class ProbabilisticReconciledPhylogenyObject {
 	                                        Hashtable<String, Double> scaleParams,
 	                                        Hashtable<Node, double[]> posteriors, double rho,
 	                                        int iteration) {
+		// the gradients are per function (F x F), not per state, and Q
+		// is only read entry by entry, so a sparse Q stays sparse here
+		int functions = pfxT.getRows();
 		double[][] sumGradients =
-		  new double[pfxT.getRows()][pfxT.getColumns()];
+		  new double[functions][functions];
 		double[] alphaGradients =
-		  new double[pfxT.getColumns()];
+		  new double[functions];
 		double[][] phiGradients =
-		  new double[pfxT.getRows()][pfxT.getColumns()];
+		  new double[functions][functions];
 		double[] phi0Gradient =
-		  new double[pfxT.getColumns()];
-		LAPACKMatrixOperationsWrapper phiGradientsLAPACKMatrixOperationsWrapper = new LAPACKMatrixOperationsWrapper(pfxT.getSizeExpMatrix(),
-		    pfxT.getSizeExpMatrix());
-		precomputePhiGradient(pfxT, phiGradients, phiGradientsLAPACKMatrixOperationsWrapper,
-		                      phi0Gradient);
+		  new double[functions];
+		precomputePhiGradient(pfxT, phiGradients, phi0Gradient);
 		//printMatrix(phiGradients);
 
 		Vector<Node> evidence = findTreeWithEvidence();
@@ -1961,6 +2463,10 @@ public class ProbabilisticReconciledPhylogenyObject {
 		double deltaScale = 0.0;
 		//double epsilon = 1.0E-18;
 		double epsilon = 0.01;
+		double dupGradient = 0.0;
+		double speGradient = 0.0;
+		int dupCount = 0;
+		int speCount = 0;
 
 		for (int m = 0; m < sumGradients.length; m++) {
 			for (int n = 0; n < sumGradients[m].length; n++) {
@@ -1990,33 +2496,37 @@ public class ProbabilisticReconciledPhylogenyObject {
 				                              sumGradients,
 				                              alphaGradients,
 				                              phiGradients,
-				                              phiGradientsLAPACKMatrixOperationsWrapper,
 				                              phi0Gradient,
 				                              iteration);
 				// scale times step size
 				scaleGradient = scaleGradient * rho;
 
 				if (n.getParent() != null && n.getParent().hasDuplication()) {
-					double dupGradient =
-					  scaleGradients.get(DUPLICATION_PARAMS).doubleValue();
-					scaleGradients.put(DUPLICATION_PARAMS,
-					                   new Double(dupGradient
-					                              + scaleGradient));
-					scaleCounts.put(DUPLICATION_PARAMS,
-					                new Integer(1 + scaleCounts.get(DUPLICATION_PARAMS).intValue()));
+					dupGradient += scaleGradient;
+					dupCount++;
 				}
 				else {
-					double speGradient =
-					  scaleGradients.get(SPECIATION_PARAMS).doubleValue();
-					scaleGradients.put(SPECIATION_PARAMS,
-					                   new Double(speGradient
-					                              + scaleGradient));
-					scaleCounts.put(SPECIATION_PARAMS,
-					                new Integer(1 + scaleCounts.get(SPECIATION_PARAMS).intValue()));
+					speGradient += scaleGradient;
+					speCount++;
 				}
 			}
 		}
 
+		// summed as primitives above, boxed once here
+		if (dupCount > 0) {
+			scaleGradients.put(DUPLICATION_PARAMS, new Double(scaleGradients.get(DUPLICATION_PARAMS).doubleValue()
+			                   + dupGradient));
+			scaleCounts.put(DUPLICATION_PARAMS, new Integer(scaleCounts.get(DUPLICATION_PARAMS).intValue()
+			                + dupCount));
+		}
+
+		if (speCount > 0) {
+			scaleGradients.put(SPECIATION_PARAMS, new Double(scaleGradients.get(SPECIATION_PARAMS).doubleValue()
+			                   + speGradient));
+			scaleCounts.put(SPECIATION_PARAMS, new Integer(scaleCounts.get(SPECIATION_PARAMS).intValue()
+			                + speCount));
+		}
+
 		// Update pfx matrix
 		double delta = 0.0;
 		elementwiseDivide(sumGradients, phiGradients);
@@ -2213,7 +2723,6 @@ public class ProbabilisticReconciledPhylogenyObject {
 	    double[][] sumGradients,
 	    double[] alphaGradients,
 	    double[][] phiGradient,
-	    LAPACKMatrixOperationsWrapper phiGradientLAPACKMatrixOperationsWrapper,
 	    double[] phi0Gradient,
 	    int iteration) {
 		// assumes initialized sumGradients/alphaGradients
@@ -2224,14 +2733,8 @@ public class ProbabilisticReconciledPhylogenyObject {
 			System.exit(0);
 		}
 
-		// Iterate over power set of parents/children
-		ProteinFunctionMarkovState parent = new ProteinFunctionMarkovState(posteriorsParent.length,
-		                               pfx.maxFunctions());
-		ProteinFunctionMarkovState child = new ProteinFunctionMarkovState(posteriorsParent.length,
-		                              pfx.maxFunctions());
-
+		ProteinFunctionStateIndex index = pfx.getStateIndex();
 		double scaleGradient = 0.0;
-		int diffIndex = 0;
 
 		//System.out.println("One node");
 
@@ -2249,116 +2752,78 @@ public class ProbabilisticReconciledPhylogenyObject {
 
 		double checksum = 0.0;
 
-		while (child.hasNext()) {
-			child.getNextNonZeros();
+		// Iterate over the child states with one function
+		for (int c = 1; c < index.size(); c++) {
 			prod = noParent;
-			double currentChild = 1.0;
-
-			if (child.getCurrentSum() == 1) {
-				for (int j = 0; j < child.length(); j++) {
-					if (child.elementAt(j) == 1)
-						currentChild *= posteriorsChild[j];
-					else
-						currentChild *= (1.0 - posteriorsChild[j]);
-				}
 
+			if (index.count(c) == 1) {
+				int j = index.functions(c)[0];
+				double currentChild = statePosterior(index.functions(c), posteriorsChild);
 				checksum += currentChild;
-
-				for (int j = 0; j < child.length(); j++) {
-					if (child.elementAt(j) == 1) {
-						alphaGradients[j] += (currentChild * noParent
-						                      * scaleParam * distance);
-						alphaGradients[j] -= (noChild * noParent
-						                      * scaleParam * distance);
-					}
-				}
+				alphaGradients[j] += (currentChild * noParent
+				                      * scaleParam * distance);
+				alphaGradients[j] -= (noChild * noParent
+				                      * scaleParam * distance);
 			}
 		}
 
 		//System.out.println("Checksum: "+(checksum+noChild));
 
-		int childCount = 0;
-		int parentCount = 1;
-		child.Reset();
-
-		while (parent.hasNext()) {
-			parent.getNextNonZeros();
-			double currentParent = 1.0;
-
-			for (int i = 0; i < parent.length(); i++) {
-				if (parent.elementAt(i) == 1)
-					currentParent *= posteriorsParent[i];
-				else
-					currentParent *= (1.0 - posteriorsParent[i]);
-			}
-
-			double sameChild = 1.0;
+		// Only the children one function away from the parent (and the
+		// parent itself, for the diagonal of Q) contribute, so walk
+		// those from the state index, in increasing child index.
+		InferenceScratch s = scratch(pfx);
+		int[] neighbours = s.neighbours;
+		// the identity term uses the child state left over from the
+		// previous parent's walk: empty at first, then the last state
+		double sameChild = noChild;
+		double lastChild = statePosterior(index.functions(index.size() - 1),
+		                                  posteriorsChild);
+
+		for (int parentCount = 1; parentCount < index.size(); parentCount++) {
+			int[] parentFunctions = index.functions(parentCount);
+			double currentParent = statePosterior(parentFunctions, posteriorsParent);
+			double identityProd = currentParent * sameChild * distance * scaleParam;
+			int n = sortedNeighbours(index, parentCount, neighbours);
 
-			for (int j = 0; j < child.length(); j++) {
-				if (child.elementAt(j) == 1)
-					sameChild *= posteriorsChild[j];
-				else
-					sameChild *= (1.0 - posteriorsChild[j]);
-			}
+			for (int c = 0; c < n; c++) {
+				int childCount = neighbours[c];
+				double currentChild = statePosterior(index.functions(childCount),
+				                                     posteriorsChild);
+				prod = currentChild * currentParent
+				       * distance * scaleParam;
 
-			childCount = 0;
-			child.Reset();
-			double identityProd = currentParent * sameChild * distance * scaleParam;
+				if (childCount != parentCount) {
+					int k = flippedFunction(index, parentCount, childCount);
 
-			while (child.hasNext()) {
-				child.getNext();
-				//parent.printPowerSet();
-				//child.printPowerSet();
-				double currentChild = 1.0;
-				diffIndex = parent.offByOne(child);
-
-				if (diffIndex != -1) {
-					for (int j = 0; j < child.length(); j++) {
-						if (child.elementAt(j) == 1)
-							currentChild *= posteriorsChild[j];
-						else
-							currentChild *= (1.0 - posteriorsChild[j]);
+					if (!index.has(childCount, k)) {
+						sumGradients[k][k] += prod;
+						sumGradients[k][k] -= identityProd;
 					}
-
-					prod = currentChild * currentParent
-					       * distance * scaleParam;
-
-					for (int i = 0; i < parent.length(); i++) {
-						if (parent.elementAt(i) == 1) {
-							for (int j = 0; j < child.length(); j++) {
-								if (i == j && child.elementAt(j) == 0) {
-									sumGradients[i][i] += prod;
-									sumGradients[i][i] -= identityProd;
-								}
-								else
-									if (i != j && child.elementAt(j) == 1
-									    && parent.elementAt(j) == 0) {
-										sumGradients[i][j] += prod;
-										sumGradients[j][i] += prod;
-										sumGradients[i][j] -= identityProd;
-										sumGradients[j][i] -= identityProd;
-										// Alpha updates
-										alphaGradients[j] += prod;
-										alphaGradients[j] -= identityProd;
-
-									}
-							}
+					else {
+						for (int i = 0; i < parentFunctions.length; i++) {
+							int f = parentFunctions[i];
+							sumGradients[f][k] += prod;
+							sumGradients[k][f] += prod;
+							sumGradients[f][k] -= identityProd;
+							sumGradients[k][f] -= identityProd;
+							// Alpha updates
+							alphaGradients[k] += prod;
+							alphaGradients[k] -= identityProd;
 						}
 					}
-
-					// Update scaleGradient
-					scaleGradient += (currentChild * currentParent
-					                  * distance
-					                  * pfx.getQElement(parentCount, childCount));
-					//System.out.println("Adding: "+(currentChild*currentParent*distance*pfx.getQElement(parentCount, childCount)));
 				}
 
-				childCount++;
+				// Update scaleGradient
+				scaleGradient += (currentChild * currentParent
+				                  * distance
+				                  * pfx.getQElement(parentCount, childCount));
 			}
 
-			parentCount++;
+			sameChild = lastChild;
 		}
 
+		InferenceScratch.release(s);
 		//System.out.println("Scale gradient before:"+scaleGradient);
 		return scaleGradient;
 	}
@@ -2548,124 +3013,153 @@ public class ProbabilisticReconciledPhylogenyObject {
 	public Vector<Node> findTreeWithEvidence() {
 		Vector<Node> evidence = new Vector<Node>();
 		Vector<Node> messages = new Vector<Node>();
+		PhylogenyTopology topo = getTopology();
+		boolean[] inEvidence = new boolean[topo.size];
 
 		for (int node = tree.size() - 1; node >= 0; node--) {
 			// Get the name of the node
 			Node n = tree.elementAt(node);
 
 			//Case 1: Leaf with evidence
-			if (n.hasLocalProbabilities() && n.isLeaf()) {
+			if (hasEvidence(node) && n.isLeaf()) {
 				messages.add(n);
 				evidence.add(n);
+				inEvidence[node] = true;
 			} // end of leaf with evidence
 		}// end of initial leaf search
 
-		while (!messages.isEmpty()) {
-			Node parent = messages.elementAt(0).getParent();
+		for (int m = 0; m < messages.size(); m++) {
+			Node parent = messages.elementAt(m).getParent();
 
 			if (parent != null
 			    && !parent.isRoot()
-			    && !evidence.contains(parent)) {
+			    && !inEvidence[parent.getOrdinal()]) {
 				evidence.add(parent);
 				messages.add(parent);
+				inEvidence[parent.getOrdinal()] = true;
 			}
-
-			messages.remove(0);
 		}
 
 		return evidence;
 	}
 
 
-	@SuppressWarnings("unused")
+	// Counts how many entries of Q each parameter appears in, walking
+	// the neighbours of each state from the state index rather than
+	// every parent/child pair.
+	// If this is changed, also change RateMatrixPlan
 	public void precomputePhiGradient(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx,
 	                                  double[][] phiGradients,
-	                                  LAPACKMatrixOperationsWrapper qGradients,
 	                                  double[] phi0Gradient) {
-		ProteinFunctionMarkovState parent = new ProteinFunctionMarkovState(pfx.getRows(), pfx.maxFunctions());
-		ProteinFunctionMarkovState child = new ProteinFunctionMarkovState(pfx.getRows(), pfx.maxFunctions());
-
-		if (phiGradients == null || phi0Gradient == null || qGradients == null) {
+		if (phiGradients == null || phi0Gradient == null) {
 			System.out.print("Error: in precomputeQGradient, must ");
 			System.out.print("initialize phiGradients and phi0Gradient ");
 			System.out.println("before call");
 			System.exit(0);
 		}
 
-		for (int i = 0; i < parent.length(); i++) {
+		ProteinFunctionStateIndex index = pfx.getStateIndex();
+		int functions = pfx.getRows();
+
+		for (int i = 0; i < functions; i++) {
 			phi0Gradient[i] = 0.0;
 
-			for (int j = 0; j < child.length(); j++) {
+			for (int j = 0; j < functions; j++) {
 				phiGradients[i][j] = 0.0;
 			}
 		}
 
-		//qGradients.zero();
-		int count = 0;
-		int diffIndex = 0;
+		// cycle through alphas to find gradients
+		for (int j = 0; j < functions; j++) {
+			if (index.flip(0, j) >= 0 && pfx.getAlpha(j) != 0)
+				phi0Gradient[j] += 1;
+		}
+
+		for (int p = 1; p < index.size(); p++) {
+			int[] parentFunctions = index.functions(p);
 
-		while (child.hasNext()) {
-			child.getNextNonZeros();
+			for (int k = 0; k < functions; k++) {
+				if (index.flip(p, k) < 0)
+					continue;
 
-			// cycle through alphas to find gradients
-			if (child.getCurrentSum() == 1) {
-				for (int j = 0; j < child.length(); j++) {
-					if (child.elementAt(j) == 1 && pfx.getAlpha(j) != 0) {
-						phi0Gradient[j] += 1;
-						//qGradients.add(0, count, 1);
+				if (index.has(p, k)) {
+					phiGradients[k][k] += 1;
+				}
+				else {
+					for (int i = 0; i < parentFunctions.length; i++) {
+						phiGradients[parentFunctions[i]][k] += 1;
+						phiGradients[k][parentFunctions[i]] += 1;
+						phi0Gradient[k] += 1;
 					}
 				}
 			}
+		}
 
-			count++;
-		}
-
-		child.Reset();
-		int parentCount = 1;
-		int childCount = 0;
-
-		while (parent.hasNext()) {
-			parent.getNextNonZeros();
-			child.Reset();
-			childCount = 0;
-
-			while (child.hasNext()) {
-				// important: since the left column is not included
-				// in the counts, don't include it in the scaling gradient.
-				child.getNext();
-				//child.printPowerSet();
-				diffIndex = parent.offByOne(child);
-
-				if (diffIndex != -1 && diffIndex != parent.length()) {
-					for (int i = 0; i < parent.length(); i++) {
-						if (parent.elementAt(i) == 1) {
-							// Cycle through, add gradient
-							for (int j = 0; j < child.length(); j++) {
-								if (i == j && child.elementAt(j) == 0) {
-									phiGradients[i][i] += 1;
-								}
-								else
-									if (i != j && child.elementAt(j) == 1
-									    && parent.elementAt(j) == 0) {
-										phiGradients[i][j] += 1;
-										phiGradients[j][i] += 1;
-										phi0Gradient[j] += 1;
-										//qGradients.add(parentCount, childCount, 1);
-									}
-							}
-						}
-					}
-				}
+		//System.out.println("PhiGradients:");
+		//printMatrix(phiGradients);
+	}
 
-				childCount++;
+	// Probability of exactly the given functions (in increasing order)
+	// under independent posteriors, multiplied in function order.
+	private double statePosterior(int[] functions, double[] posteriors) {
+		double prod = 1.0;
+		int next = 0;
+
+		for (int j = 0; j < posteriors.length; j++) {
+			if (next < functions.length && functions[next] == j) {
+				prod *= posteriors[j];
+				next++;
 			}
+			else
+				prod *= (1.0 - posteriors[j]);
+		}
+
+		return prod;
+	}
 
-			parentCount++;
+	// product over functions of present[j] if the state has j and
+	// absent[j] if not
+	private double stateProduct(int[] functions, double[] present, double[] absent) {
+		double prod = 1.0;
+		int next = 0;
+
+		for (int j = 0; j < present.length; j++) {
+			if (next < functions.length && functions[next] == j) {
+				prod *= present[j];
+				next++;
+			}
+			else
+				prod *= absent[j];
 		}
 
-		//System.out.println("PhiGradients:");
-		//printMatrix(phiGradients);
-		//qGradients.print();
+		return prod;
+	}
+
+	// Fills out with state s and its neighbours, in increasing index;
+	// returns how many there are.
+	private int sortedNeighbours(ProteinFunctionStateIndex index, int s, int[] out) {
+		int n = 0;
+
+		for (int k = 0; k < index.numFunctions(); k++) {
+			int c = index.flip(s, k);
+
+			if (c >= 0)
+				out[n++] = c;
+		}
+
+		out[n++] = s;
+		Arrays.sort(out, 0, n);
+		return n;
+	}
+
+	// the function that differs between neighbouring states s and c
+	private int flippedFunction(ProteinFunctionStateIndex index, int s, int c) {
+		for (int k = 0; k < index.numFunctions(); k++) {
+			if (index.flip(s, k) == c)
+				return k;
+		}
+
+		return -1;
 	}
 
 
@@ -257,7 +257,7 @@ public class ProteinFunctionMarkovState {
 					}
 
 					total++;
-					j = 0; // break
+					break; // v[j] is counted here, not again below
 				}
 
 				if (v[j] == 1)
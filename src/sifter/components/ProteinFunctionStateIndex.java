@@ -0,0 +1,107 @@
+/*
+ * Maps the states of the (truncated) power set of functions to their
+ * power set index, in the order ProteinFunctionMarkovState walks them,
+ * and back. Also keeps, for each state, the index of the state with
+ * one function flipped, so neighbours in the Markov chain can be
+ * generated directly rather than found by scanning every pair.
+ */
+package sifter.components;
+
+import java.util.BitSet;
+import java.util.HashMap;
+
+public class ProteinFunctionStateIndex {
+
+	private int numFunctions;
+	private int maxFunctions;
+	// functions present in each state, in increasing order
+	private int[][] states;
+	// flip[s][f] = index of s with function f flipped, -1 if truncated
+	private int[][] flip;
+
+	public ProteinFunctionStateIndex(int functions, int maxfunctions) {
+		numFunctions = functions;
+		maxFunctions = maxfunctions;
+		ProteinFunctionMarkovState ps = new ProteinFunctionMarkovState(functions, maxfunctions);
+		int size = ps.powerSetSize();
+		states = new int[size][];
+		HashMap<BitSet, Integer> index = new HashMap<BitSet, Integer>(2 * size);
+		BitSet[] keys = new BitSet[size];
+
+		while (ps.hasNext()) {
+			ps.getNext();
+			int s = ps.setIndex();
+			BitSet key = new BitSet(functions);
+			int count = 0;
+
+			for (int j = 0; j < functions; j++) {
+				if (ps.elementAt(j) == 1) {
+					key.set(j);
+					count++;
+				}
+			}
+
+			states[s] = new int[count];
+			count = 0;
+
+			for (int j = 0; j < functions; j++) {
+				if (ps.elementAt(j) == 1)
+					states[s][count++] = j;
+			}
+
+			keys[s] = key;
+			index.put(key, Integer.valueOf(s));
+		}
+
+		flip = new int[size][functions];
+
+		for (int s = 0; s < size; s++) {
+			BitSet key = (BitSet)keys[s].clone();
+
+			for (int j = 0; j < functions; j++) {
+				key.flip(j);
+				Integer n = index.get(key);
+				flip[s][j] = (n == null) ? -1 : n.intValue();
+				key.flip(j);
+			}
+		}
+	}
+
+	public int size() {
+		return states.length;
+	}
+
+	public int numFunctions() {
+		return numFunctions;
+	}
+
+	public int maxFunctions() {
+		return maxFunctions;
+	}
+
+	// the functions in state s, in increasing order
+	public int[] functions(int s) {
+		return states[s];
+	}
+
+	public int count(int s) {
+		return states[s].length;
+	}
+
+	public boolean has(int s, int f) {
+		int[] fs = states[s];
+
+		for (int i = 0; i < fs.length; i++) {
+			if (fs[i] == f)
+				return true;
+		}
+
+		return false;
+	}
+
+	// index of state s with function f added or removed,
+	// or -1 if that state is past the truncation
+	public int flip(int s, int f) {
+		return flip[s][f];
+	}
+}
@@ -0,0 +1,177 @@
+/*
+ * Compiled layout of the rate matrix Q for a given state index. The
+ * nonzero pattern of Q, and which of the delta/alpha parameters add up
+ * to each entry, do not depend on the parameter values, so they are
+ * worked out once here. Rebuilding Q after the parameters change is
+ * then one pass over primitive arrays, with no allocation.
+ *
+ * Parameters are read from a flat vector: delta(i,j) is at i*F + j
+ * and alpha(j) is at F*F + j (see parameterCount).
+ */
+package sifter.components;
+
+public class RateMatrixPlan {
+
+	private ProteinFunctionStateIndex index;
+	private int numFunctions;
+	public int rows;
+	// compressed rows, sorted by column within a row
+	public int[] rowStart;
+	public int[] columns;
+	public double[] values;
+	// position of the diagonal entry of each row
+	private int[] diagonal;
+	// parameters summed (in order) for each entry; none for the diagonal
+	private int[] termStart;
+	private int[] terms;
+
+	public RateMatrixPlan(ProteinFunctionStateIndex stateIndex) {
+		index = stateIndex;
+		numFunctions = index.numFunctions();
+		rows = index.size();
+		int F = numFunctions;
+		int[] neighbour = new int[F + 1];
+		int[] flipped = new int[F + 1];
+		int nonZeros = 0;
+		int termCount = 0;
+
+		// first count, so the arrays can be sized exactly
+		for (int p = 0; p < rows; p++) {
+			int size = index.count(p);
+
+			for (int k = 0; k < F; k++) {
+				if (index.flip(p, k) < 0)
+					continue;
+
+				nonZeros++;
+
+				if (size == 0 || index.has(p, k))
+					termCount++;
+				else
+					termCount += 2 * size;
+			}
+
+			nonZeros++;
+		}
+
+		rowStart = new int[rows + 1];
+		columns = new int[nonZeros];
+		values = new double[nonZeros];
+		diagonal = new int[rows];
+		termStart = new int[nonZeros + 1];
+		terms = new int[termCount];
+		nonZeros = 0;
+		termCount = 0;
+
+		for (int p = 0; p < rows; p++) {
+			int[] functions = index.functions(p);
+			int n = 0;
+
+			for (int k = 0; k < F; k++) {
+				int c = index.flip(p, k);
+
+				if (c < 0)
+					continue;
+
+				neighbour[n] = c;
+				flipped[n++] = k;
+			}
+
+			neighbour[n] = p;
+			flipped[n++] = -1;
+
+			// sort by column, so the diagonal sums its row in the same
+			// order as the old all-pairs scan did
+			for (int i = 1; i < n; i++) {
+				int c = neighbour[i];
+				int k = flipped[i];
+				int j = i - 1;
+
+				while (j >= 0 && neighbour[j] > c) {
+					neighbour[j + 1] = neighbour[j];
+					flipped[j + 1] = flipped[j];
+					j--;
+				}
+
+				neighbour[j + 1] = c;
+				flipped[j + 1] = k;
+			}
+
+			rowStart[p] = nonZeros;
+
+			for (int i = 0; i < n; i++) {
+				int k = flipped[i];
+				termStart[nonZeros] = termCount;
+
+				if (k < 0)
+					diagonal[p] = nonZeros;
+				else
+					if (functions.length == 0) {
+						// from the empty state, add k at rate alpha_k
+						terms[termCount++] = alphaIndex(k);
+					}
+					else
+						if (index.has(p, k)) {
+							// remove k
+							terms[termCount++] = deltaIndex(k, k);
+						}
+						else {
+							// add k, driven by each function present
+							for (int f = 0; f < functions.length; f++) {
+								terms[termCount++] = deltaIndex(functions[f], k);
+								terms[termCount++] = alphaIndex(k);
+							}
+						}
+
+				columns[nonZeros++] = neighbour[i];
+			}
+		}
+
+		rowStart[rows] = nonZeros;
+		termStart[nonZeros] = termCount;
+	}
+
+	public ProteinFunctionStateIndex getStateIndex() {
+		return index;
+	}
+
+	public int nonZeros() {
+		return rowStart[rows];
+	}
+
+	// length of the parameter vector passed to assemble
+	public int parameterCount() {
+		return numFunctions * numFunctions + numFunctions;
+	}
+
+	public int deltaIndex(int r, int c) {
+		return r * numFunctions + c;
+	}
+
+	public int alphaIndex(int j) {
+		return numFunctions * numFunctions + j;
+	}
+
+	// Fills values with Q for the given parameters; each diagonal is
+	// minus the sum of the rest of its row, so rows sum to 0.
+	public void assemble(double[] parameters) {
+		for (int p = 0; p < rows; p++) {
+			double sum = 0;
+
+			for (int e = rowStart[p]; e < rowStart[p + 1]; e++) {
+				if (e == diagonal[p])
+					continue;
+
+				double v = 0;
+
+				for (int t = termStart[e]; t < termStart[e + 1]; t++)
+					v += parameters[terms[t]];
+
+				values[e] = v;
+				sum += v;
+			}
+
+			values[diagonal[p]] = -sum;
+		}
+	}
+}
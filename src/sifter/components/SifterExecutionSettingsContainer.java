@@ -30,6 +30,10 @@ public class SifterExecutionSettingsContainer {
 		setSetting("folds", new Integer(0));
 		setSetting("truncation", new Integer(0));
 		setSetting("cutoff", new Double(0.01));
+		setSetting("branchgrid", new Double(0.0));
+		setSetting("sparse", new Boolean(false));
+		setSetting("threads", new Integer(0));
+		setSetting("ancestors", new Boolean(false));
 	}
 
 	/** Set option "key" to "value".
@@ -0,0 +1,190 @@
+/*
+ * Rate matrix Q stored in compressed sparse rows. Only states that
+ * differ by one function have a nonzero rate, so for large truncated
+ * power sets this holds O(S F) entries rather than S^2.
+ *
+ * exp(Qt) v is computed by uniformization: with lambda >= max |q_ii|,
+ * P = I + Q / lambda is stochastic and
+ *   exp(Qt) v = sum_k e^{-lambda t} (lambda t)^k / k! P^k v,
+ * which only needs products with Q (all terms are nonnegative, so
+ * there is no cancellation). Long times are split into steps so that
+ * e^{-lambda t} does not underflow.
+ */
+package sifter.components;
+
+public class SparseRateMatrix {
+
+	// largest lambda t for a single uniformization step
+	private static final double MAX_STEP = 20.0;
+	// stop once the Poisson weights left are below this
+	private static final double TOLERANCE = 1.0E-15;
+
+	public int rows;
+	public int[] rowStart;
+	public int[] columns;
+	public double[] values;
+	private double lambda;
+
+	// rowStart has rows+1 entries; columns must be sorted within a row
+	public SparseRateMatrix(int r, int[] rs, int[] c, double[] v) {
+		rows = r;
+		rowStart = rs;
+		columns = c;
+		values = v;
+		updateRates();
+	}
+
+	// call after changing values in place (the pattern must not change)
+	public void updateRates() {
+		lambda = 0;
+
+		for (int i = 0; i < rows; i++) {
+			double d = Math.abs(get(i, i));
+
+			if (d > lambda)
+				lambda = d;
+		}
+	}
+
+	public int nonZeros() {
+		return rowStart[rows];
+	}
+
+	public double get(int r, int c) {
+		int lo = rowStart[r];
+		int hi = rowStart[r + 1] - 1;
+
+		while (lo <= hi) {
+			int mid = (lo + hi) >>> 1;
+
+			if (columns[mid] < c)
+				lo = mid + 1;
+			else
+				if (columns[mid] > c)
+					hi = mid - 1;
+				else
+					return values[mid];
+		}
+
+		return 0.0;
+	}
+
+	// max row sum norm
+	public double normInf() {
+		double norm = 0;
+
+		for (int i = 0; i < rows; i++) {
+			double sum = 0;
+
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++)
+				sum += Math.abs(values[k]);
+
+			if (sum > norm)
+				norm = sum;
+		}
+
+		return norm;
+	}
+
+	// y = Q x
+	public void multiply(double[] x, int xOffset, double[] y, int yOffset) {
+		for (int i = 0; i < rows; i++) {
+			double sum = 0;
+
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++)
+				sum += values[k] * x[xOffset + columns[k]];
+
+			y[yOffset + i] = sum;
+		}
+	}
+
+	// y = Q^T x
+	public void multiplyTranspose(double[] x, int xOffset, double[] y, int yOffset) {
+		for (int i = 0; i < rows; i++)
+			y[yOffset + i] = 0.0;
+
+		for (int i = 0; i < rows; i++) {
+			double xi = x[xOffset + i];
+
+			if (xi == 0.0)
+				continue;
+
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++)
+				y[yOffset + columns[k]] += values[k] * xi;
+		}
+	}
+
+	public LAPACKMatrixOperationsWrapper toDense() {
+		LAPACKMatrixOperationsWrapper m = new LAPACKMatrixOperationsWrapper(rows, rows);
+
+		for (int i = 0; i < rows; i++) {
+			for (int k = rowStart[i]; k < rowStart[i + 1]; k++)
+				m.matrix[columns[k]*rows + i] = values[k];
+		}
+
+		return m;
+	}
+
+	/**
+	 * Computes exp(Qt) V (or exp(Q^T t) V if transpose) for the rows x
+	 * cols column-major matrix V, into out. Safe to call from several
+	 * threads at once.
+	 */
+	public LAPACKMatrixOperationsWrapper expTimes(double t, LAPACKMatrixOperationsWrapper V,
+	        LAPACKMatrixOperationsWrapper out, boolean transpose) {
+		double[] v = new double[rows];
+		double[] term = new double[rows];
+		double[] next = new double[rows];
+		double[] sum = new double[rows];
+
+		for (int j = 0; j < V.cols; j++) {
+			System.arraycopy(V.matrix, j*rows, v, 0, rows);
+			expTimes(t, v, term, next, sum, transpose);
+			System.arraycopy(v, 0, out.matrix, j*rows, rows);
+		}
+
+		return out;
+	}
+
+	// v <- exp(Qt) v, using the other three arrays as scratch
+	private void expTimes(double t, double[] v, double[] term, double[] next, double[] sum,
+	                      boolean transpose) {
+		double lt = lambda * t;
+
+		if (lt <= 0.0)
+			return;
+
+		int steps = (int)Math.ceil(lt / MAX_STEP);
+		double ls = lt / steps;
+		int maxTerms = (int)Math.ceil(ls + 10.0 * Math.sqrt(ls) + 20.0);
+
+		for (int s = 0; s < steps; s++) {
+			double weight = Math.exp(-ls);
+			double left = 1.0 - weight;
+
+			for (int i = 0; i < rows; i++) {
+				term[i] = v[i];
+				sum[i] = weight * v[i];
+			}
+
+			for (int k = 1; k <= maxTerms && left > TOLERANCE; k++) {
+				// term <- P term
+				if (transpose)
+					multiplyTranspose(term, 0, next, 0);
+				else
+					multiply(term, 0, next, 0);
+
+				for (int i = 0; i < rows; i++)
+					term[i] += next[i] / lambda;
+
+				weight *= ls / k;
+				left -= weight;
+
+				for (int i = 0; i < rows; i++)
+					sum[i] += weight * term[i];
+			}
+
+			System.arraycopy(sum, 0, v, 0, rows);
+		}
+	}
+}
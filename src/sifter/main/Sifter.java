@@ -245,6 +245,22 @@ public class Sifter {
 				settings.setSetting("alpha", prepareFilename(FILE_ALPHA, FILE_ALPHA_DEFAULTS, family, line));
 			}
 			
+			// Global to all run modes
+			if (line.hasOption("branchgrid"))
+				settings.setSetting("branchgrid", Double.valueOf(line.getOptionValue("branchgrid")));
+			
+			if (line.hasOption("sparse"))
+				settings.setSetting("sparse", new Boolean(true));
+			
+			if (line.hasOption("eigencache"))
+				settings.setSetting("eigencache", line.getOptionValue("eigencache"));
+			
+			if (line.hasOption("threads"))
+				settings.setSetting("threads", Integer.valueOf(line.getOptionValue("threads")));
+			
+			if (line.hasOption("ancestors"))
+				settings.setSetting("ancestors", new Boolean(true));
+			
 			// The following is a completely retarded way to specify which
 			// evidence should be included.
 			
@@ -509,13 +525,18 @@ public class Sifter {
 		res.addOption(OptionBuilder.withLongOpt("familyfile").withDescription("Set family .fx parameter filename (default: data/infer-<FAMILY>.fx)").withArgName("filename").hasArg().create("fx"));
 		res.addOption(OptionBuilder.withLongOpt("scale").withDescription("Set family .fx scale filename (default: data/scale-<FAMILY>.fx)").withArgName("filename").hasArg().create("sfx"));
 		res.addOption(OptionBuilder.withLongOpt("alpha").withDescription("Set family .fx alpha filename (default: data/alpha-<FAMILY>.fx)").withArgName("filename").hasArg().create("afx"));
-		res.addOption(OptionBuilder.withLongOpt("ontology").withDescription("Specify which ontology file you want (default: \"data/function.ontology\")").withArgName("filename").hasArg().create("ontology"));
+		res.addOption(OptionBuilder.withLongOpt("ontology").withDescription("Specify which ontology file you want, a GO SQLite database or an OBO file, gzipped or not (default: \"data/function.ontology\")").withArgName("filename").hasArg().create("ontology"));
 		res.addOption(OptionBuilder.withLongOpt("help").withDescription("Show help for arguments. (More help is available via README.txt)").create());
 		res.addOption(OptionBuilder.withLongOpt("iter").withDescription("Number of iterations. At the moment, this applies only to EM. ").withArgName("number").hasArg().create("iter"));
 		res.addOption(OptionBuilder.withLongOpt("step").withDescription("Step size for gradient ascent in EM (M-step)").withArgName("number").hasArg().create("step"));
 		res.addOption(OptionBuilder.withLongOpt("cutoff").withDescription("Cutoff delta for gradient ascent in EM (M-step)").withArgName("number").hasArg().create("cutoff"));
 		res.addOption(OptionBuilder.withLongOpt("folds").withDescription("Number of folds in cross validation, leave-one-out is 0").withArgName("number").hasArg().create("folds"));
 		res.addOption(OptionBuilder.withLongOpt("truncation").withDescription("Number of functions to truncate to in approximation").withArgName("number").hasArg().create("truncation"));
+		res.addOption("sparse", "sparse", false, "Use a sparse rate matrix (automatic for large truncations)");
+		res.addOption(OptionBuilder.withLongOpt("branchgrid").withDescription("Snap branch lengths to a geometric grid with this ratio (e.g. 1.05) to share matrix exponentials (default: off)").withArgName("number").hasArg().create("branchgrid"));
+		res.addOption(OptionBuilder.withLongOpt("eigencache").withDescription("Keep rate matrix eigendecompositions in this directory and reuse them in later runs (default: off)").withArgName("directory").hasArg().create("eigencache"));
+		res.addOption(OptionBuilder.withLongOpt("threads").withDescription("Number of threads used for message passing on large trees and for cross-validation folds (default: one per processor)").withArgName("number").hasArg().create("threads"));
+		res.addOption("ancestors", "ancestors", false, "Load only the annotated ontology terms and their ancestors");
 		
 		
 		res.addOption("exp", "with-exp", false, "(Experiment) Use GOA protein annotations inferred from experiment.");
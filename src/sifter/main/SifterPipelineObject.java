@@ -15,6 +15,11 @@ package sifter.main;
 import java.util.Enumeration;
 import java.util.Hashtable;
 import java.util.Vector;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import gape.genetic_algorithm.Population;
 import sifter.components.ExpectationMaximizationObject;
@@ -58,6 +63,9 @@ public class SifterPipelineObject {
 	private int setfolds;
 	private int truncation;
 	private String outputDirectory;
+	// for the tree's propagation when --threads is given (else the
+	// common pool); one per run, shut down when the run is done
+	private ForkJoinPool pool;
 
 	private Hashtable<String, ProteinAnnotationObjectWithProbabilityMethods> proteinList; // Indexed by swissprot numbers. KEY: swissprotID (not name); VALUE: PFunprotein
 	private PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser family; // Indexed by pfam ID's
@@ -229,6 +237,11 @@ public class SifterPipelineObject {
 				long memory = runtime.totalMemory() - runtime.freeMemory();
 		        	System.out.println("Used memory is bytes: " + memory); 
 			}
+
+			if (pool != null) {
+				pool.shutdown();
+				pool = null;
+			}
 		}
 	}
 
@@ -295,8 +308,11 @@ public class SifterPipelineObject {
 	public GOOntologyWrapper buildDatasetGODAG(String file, String goFile, boolean noIEA) throws ClassNotFoundException {
 		GOOntologyWrapper pfgodag = new GOOntologyWrapper(goFile, true, true, true);
 		pfgodag.setSettingsObject(this.settings);
-		
-		pfgodag.readGOFile();
+		// either the whole ontology now, or just what the pli needs
+		boolean ancestors = ((Boolean)this.settings.getSetting("ancestors")).booleanValue();
+
+		if (!ancestors)
+			pfgodag.readGOFile();
 		
 		Vector<Integer> fns = null; // evidence functions;
 		Vector<String> methods = null; // methods list
@@ -343,6 +359,9 @@ public class SifterPipelineObject {
 				}
 			}
 
+			if (ancestors)
+				pfgodag.readGOAncestors(fns, methods);
+
 			// should be noIEA, but tally is only IDA
 			// don't need confidences here?
 			pfgodag.tallyFunctions(fns, methods);
@@ -354,6 +373,7 @@ public class SifterPipelineObject {
 		pfgodag.pruneZeroHitsAndLeaves();
 		// functions is now a GO DAG with original leaves removed if they did not appear directly in PLI
 		pfgodag.padSingletonLeaves();
+		orderLeavesAsParameters(pfgodag);
 
 		// REFACTORME: gets R values based on leaves, but not all leaves have evidence, and not all evidence is in leaves...
 		pfgodag.findRValue();
@@ -397,6 +417,23 @@ public class SifterPipelineObject {
 		return pfgodag;
 	}
 
+	// Parameters are matched to the leaves by position, so runs that
+	// read a parameter file list the leaves in the order of its header,
+	// whether the whole ontology or only the ancestors were loaded. If
+	// the terms differ, checkFunctionsMatch reports it and stops.
+	private void orderLeavesAsParameters(GOOntologyWrapper pfgodag) {
+		String runmode = (String)this.settings.getSetting("runmode");
+
+		if (runmode.equals("generate") || runmode.equals("gaparameterestimation")
+		    || familyFilename == null || !new File(familyFilename).isFile())
+			return;
+
+		Vector<Integer> terms = new GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject(familyFilename).getGOTerms();
+
+		if (terms.size() > 0)
+			pfgodag.orderLeaves(terms);
+	}
+
 	/**
 	 * Called by parseTestNetworkInputExact() and a WHOLE bunch of
 	 * other functions!
@@ -413,6 +450,15 @@ public class SifterPipelineObject {
 		ProbabilisticReconciledPhylogenyObject t = new ProbabilisticReconciledPhylogenyObject(family.getMaxAlignment());
 		String reconciledFilename = nexfile;
 		t.createReconciled(reconciledFilename);
+		t.setBranchLengthGrid(((Double)this.settings.getSetting("branchgrid")).doubleValue());
+		int threads = ((Integer)this.settings.getSetting("threads")).intValue();
+
+		if (threads > 0) {
+			if (pool == null)
+				pool = new ForkJoinPool(threads);
+
+			t.setForkJoinPool(pool);
+		}
 
 		if ((Boolean)this.settings.getSetting("verbose"))
 			t.printTree();
@@ -485,6 +531,8 @@ public class SifterPipelineObject {
 		pfx.readInScale(scaleParamsFilename);
 		pfx.setMaxFunctions(truncation); // truncation here
 		System.out.println("Setting truncation level to " + truncation);
+		pfx.setSparse(((Boolean)settings.getSetting("sparse")).booleanValue());
+		pfx.setEigenCacheDirectory((String)settings.getSetting("eigencache"));
 		ExpectationMaximizationObject pfl = new ExpectationMaximizationObject(pfx, proteinList, pfgodag, settings);
 		pfl.setSettingsObject(settings);
 		pfl.setFamily(fam);
@@ -527,7 +575,6 @@ public class SifterPipelineObject {
 		int correctGO = 0;
 		int totalGO = 0;
 		Vector<Node> toRemove = new Vector<Node>();
-		int lpsize = 0;
 
 		Vector<String> proteinNames = fam.getProteinNames();
 
@@ -545,13 +592,16 @@ public class SifterPipelineObject {
 			if (p != null && tree.hasNode(currentProtein)) {
 				ProbabilisticReconciledPhylogenyObject.Node n = tree.getNode(currentProtein);
 
-				if (n.hasLocalProbabilities() && n.isLeaf()) {
+				if (n.hasLocalProbabilities() && n.isLeaf())
 					toRemove.addElement(n);
-					lpsize = n.getLocalProbabilities().length;
-				}
 			}
 		}
 
+		// with fixed parameters, leaving each protein out in turn
+		// needs only one pass
+		if (folds == 0 && !em)
+			return leaveOneOutCrossValidation(pfgodag, fam, toRemove);
+
 		if (folds == 0)
 			folds = toRemove.size();
 
@@ -561,7 +611,26 @@ public class SifterPipelineObject {
 		System.out.println("Number of holdouts: " + toRemove.size());
 		int startIndex = 0;
 		int endIndex = 0;
-		double[][] lps = new double[toRemove.size()][lpsize];
+		int[] foldStart = new int[folds + 1];
+
+		// The parameters are read once; each fold changes its own copy.
+		GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject parameters = new GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject(familyFilename);
+		parameters.setMaxFunctions(truncation); // truncation here
+		System.out.println("Setting truncation level to " + truncation);
+		parameters.setSparse(((Boolean)settings.getSetting("sparse")).booleanValue());
+		parameters.setEigenCacheDirectory((String)settings.getSetting("eigencache"));
+
+		parameters.readInScale(scaleParamsFilename);
+		parameters.readInAlpha(alphaParamsFilename);
+
+		// Folds share nothing they change, so they run at the same time
+		int threads = ((Integer)this.settings.getSetting("threads")).intValue();
+
+		if (threads <= 0)
+			threads = Runtime.getRuntime().availableProcessors();
+
+		ExecutorService foldPool = Executors.newFixedThreadPool(Math.max(1, Math.min(threads, folds)));
+		Vector<Future<Hashtable<Node, double[]>>> results = new Vector<Future<Hashtable<Node, double[]>>>();
 
 		for (int i = 0; i < folds; i++) {
 			startIndex = endIndex;
@@ -571,137 +640,125 @@ public class SifterPipelineObject {
 			if (i < foldSizeRemainder)
 				++endIndex;
 
+			foldStart[i] = startIndex;
+			foldStart[i + 1] = endIndex;
+			Vector<Node> heldOut = new Vector<Node>();
+
 			for (int j = startIndex; j < endIndex; j++) {
 				ProbabilisticReconciledPhylogenyObject.Node n = toRemove.elementAt(j);
-				lps[j] = n.getLocalProbabilities();
-				n.removeLocalProbabilities();
+				heldOut.add(n);
 
 				if ((Boolean)this.settings.getSetting("verbose"))
 					System.out.println("X Val: removing evidence for "
 					                   + n.getNodeID());
 			}
 
-			// Run EM like usual
-			GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx = new GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject(familyFilename);
-			pfx.setMaxFunctions(truncation); // truncation here
-			System.out.println("Setting truncation level to " + truncation);
+			results.add(foldPool.submit(new FoldTask(parameters, pfgodag, fam, heldOut)));
+		}
 
-			pfx.readInScale(scaleParamsFilename);
-			pfx.readInAlpha(alphaParamsFilename);
+		foldPool.shutdown();
 
-			ExpectationMaximizationObject pfl =
-			  new ExpectationMaximizationObject(pfx, proteinList,
-			                                    pfgodag, settings);
-			pfl.setSettingsObject(settings);
-			pfl.setFamily(fam);
-			Hashtable<Node, double[]> posteriors;
+		// Check to see if we got held-out ones correct, in fold order
+		for (int i = 0; i < folds; i++) {
+			Hashtable<Node, double[]> posteriors = null;
 
-			if (em) {
-				posteriors = pfl.ExpectationMaximization(pfx, fam);
+			try {
+				posteriors = results.elementAt(i).get();
 			}
-			else {
-				posteriors = inferWithTransitionMatrixExact(pfgodag, fam);
+			catch (Exception e) {
+				System.err.println("Cross-validation fold " + i + ": " + e);
+				e.printStackTrace();
+				System.exit(1);
 			}
 
-			// Check to see if we got held-out ones correct
-			for (int k = startIndex; k < endIndex; k++) {
+			for (int k = foldStart[i]; k < foldStart[i + 1]; k++) {
 				ProbabilisticReconciledPhylogenyObject.Node n = toRemove.elementAt(k);
-				double[] lp = lps[k];
+				double[] lp = n.getLocalProbabilities();
 
 				if (lp == null)
 					System.out.println("Error: don't have local probabilities for " + n.getNodeID());
 
 				if (posteriors.containsKey(n)) {
-					double[] d = (double[])posteriors.get(n);
-					System.out.print("x-val (" + n.getNodeID() + ") ");
+					correctGO += scoreHeldOut(n, lp, (double[])posteriors.get(n));
+					totalGO++;
+				}
+			}
+		}
 
-					for (int di = 0; di < d.length; di++) {
-						System.out.print(d[di] + " ");
-					}
+		return crossValidationResults(correctGO, totalGO);
+	}
 
-					System.out.println();
-					double maxPrior = 0.0;
-					double maxPosterior = 0.0;
-					int[] maxPriorIndex = new int[1];
-					int maxPosteriorIndex = 0;
-
-					for (int j = 0; j < d.length; j++) {
-						//System.out.println("LP["+j+"] = "+lp[j]);
-						double lpj = lp[j];
-
-						try {
-							if (d[j] > maxPosterior) {
-								maxPosterior = d[j];
-								maxPosteriorIndex = j;
-							}
-							else
-								if (GenericMathFunctions.areEqual(d[j], maxPosterior)) {
-									maxPosteriorIndex = -1;
-								}
-
-							if (lpj < 0)
-								lpj = Math.exp(lpj);
-
-							if (lpj > maxPrior) {
-								maxPrior = lpj;
-								maxPriorIndex[0] = j;
-							}
-							else
-								if (GenericMathFunctions.areEqual(lpj, maxPrior)) {
-									int[] maxPriorIndexT =
-									  new int[maxPriorIndex.length+1];
-
-									for (int pi = 0; pi < maxPriorIndex.length; pi++)
-										maxPriorIndexT[pi] = maxPriorIndex[pi];
-
-									maxPriorIndexT[maxPriorIndex.length] = j;
-								}
-						}
-						catch (ArrayIndexOutOfBoundsException e) {
-							continue;
-						}
-					}
+	/**
+	 * One cross-validation fold: EM, or inference alone, on a view of
+	 * the family's tree with the fold's evidence held out, and with a
+	 * copy of the parameters. Folds leave the family and parameters
+	 * they are given as they are, and do not write any files.
+	 */
+	private class FoldTask implements Callable<Hashtable<Node, double[]>> {
+		private GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject parameters;
+		private GOOntologyWrapper pfgodag;
+		private PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser fam;
+		private Vector<Node> heldOut;
+
+		FoldTask(GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject p, GOOntologyWrapper g,
+		         PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser f, Vector<Node> h) {
+			parameters = p;
+			pfgodag = g;
+			fam = f;
+			heldOut = h;
+		}
 
-					System.out.println("In x-validation: "
-					                   + n.getNodeID() + " node name, "
-					                   + d.length + " = d length, "
-					                   + maxPosteriorIndex
-					                   + " = max posterior index, "
-					                   + maxPriorIndex.length + " = max prior index, "
-					                   + maxPosterior + " = max posterior, "
-					                   + maxPrior + " = max prior");
-
-					boolean thisCorrect = false;
-
-					for (int pi = 0; pi < maxPriorIndex.length; pi++) {
-						if (maxPosteriorIndex == maxPriorIndex[pi] &&
-						    (maxPosteriorIndex != -1)) {
-							correctGO++;
-							thisCorrect = true;
-						}
-					}
+		public Hashtable<Node, double[]> call() {
+			GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject pfx = new GOTermConversionMatrixAndMarkovTransitionMatrixInputAndMathObject(parameters);
+			PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser view = fam.withTree(fam.getTree().evidenceView(heldOut));
 
-					if (!thisCorrect) {
-						System.out.print("Missed " + (n.getNodeID())
-						                 + ", predicted "
-						                 + maxPosteriorIndex
-						                 + ", real");
+			ExpectationMaximizationObject pfl =
+			  new ExpectationMaximizationObject(pfx, proteinList,
+			                                    pfgodag, settings);
+			pfl.setSettingsObject(settings);
+			pfl.setFamily(view);
+			pfl.setWriteFiles(false);
 
-						for (int pi = 0; pi < maxPriorIndex.length; pi++) {
-							System.out.print(" " + maxPriorIndex[pi]);
-						}
+			if (em)
+				return pfl.ExpectationMaximization(pfx, view);
 
-						System.out.println();
-					}
+			return pfl.inferPosteriorsExact(view);
+		}
+	}
 
-					totalGO++;
-				}
+	/**
+	 * Leave-one-out cross-validation with the parameters as they are
+	 * read in. One propagation with all the evidence is enough: the
+	 * delta reaching a leaf does not depend on the leaf's own evidence,
+	 * so it gives the posterior with that evidence held out (see
+	 * ProbabilisticReconciledPhylogenyObject.getLeaveOneOutPosterior).
+	 */
+	private double leaveOneOutCrossValidation(GOOntologyWrapper pfgodag, PrimaryReferenceToPhylogeneticTreeAndAnnotationXMLParser fam,
+	    Vector<Node> heldOut) {
+		int correctGO = 0;
+		int totalGO = 0;
+		ProbabilisticReconciledPhylogenyObject tree = fam.getTree();
+		System.out.println("Fold size: 1");
+		System.out.println("Number of holdouts: " + heldOut.size());
 
-				tree.setNodeEvidenceProbabilities((String)n.getNodeID(),
-				                                  lp);
-			}
+		inferWithTransitionMatrixExact(pfgodag, fam);
+
+		for (int k = 0; k < heldOut.size(); k++) {
+			ProbabilisticReconciledPhylogenyObject.Node n = heldOut.elementAt(k);
+
+			if ((Boolean)this.settings.getSetting("verbose"))
+				System.out.println("X Val: holding out evidence for "
+				                   + n.getNodeID());
+
+			correctGO += scoreHeldOut(n, n.getLocalProbabilities(),
+			                          tree.getLeaveOneOutPosterior(n));
+			totalGO++;
 		}
 
+		return crossValidationResults(correctGO, totalGO);
+	}
+
+	private double crossValidationResults(int correctGO, int totalGO) {
 		System.out.println("Cross-validation results: "
 		                   + ((double)correctGO / (double)totalGO)
 		                   + " (" + correctGO + " out of " + totalGO + ")");
@@ -710,6 +767,96 @@ public class SifterPipelineObject {
 		return ((double)correctGO / (double)totalGO);
 	}
 
+	// Prints the prediction d for a held-out protein and compares its
+	// most probable function with that of the protein's evidence lp;
+	// returns the number of matches (0 or 1)
+	private int scoreHeldOut(Node n, double[] lp, double[] d) {
+		int correct = 0;
+
+		System.out.print("x-val (" + n.getNodeID() + ") ");
+
+		for (int di = 0; di < d.length; di++) {
+			System.out.print(d[di] + " ");
+		}
+
+		System.out.println();
+		double maxPrior = 0.0;
+		double maxPosterior = 0.0;
+		int[] maxPriorIndex = new int[1];
+		int maxPosteriorIndex = 0;
+
+		for (int j = 0; j < d.length; j++) {
+			//System.out.println("LP["+j+"] = "+lp[j]);
+			double lpj = lp[j];
+
+			try {
+				if (d[j] > maxPosterior) {
+					maxPosterior = d[j];
+					maxPosteriorIndex = j;
+				}
+				else
+					if (GenericMathFunctions.areEqual(d[j], maxPosterior)) {
+						maxPosteriorIndex = -1;
+					}
+
+				if (lpj < 0)
+					lpj = Math.exp(lpj);
+
+				if (lpj > maxPrior) {
+					maxPrior = lpj;
+					maxPriorIndex[0] = j;
+				}
+				else
+					if (GenericMathFunctions.areEqual(lpj, maxPrior)) {
+						int[] maxPriorIndexT =
+						  new int[maxPriorIndex.length+1];
+
+						for (int pi = 0; pi < maxPriorIndex.length; pi++)
+							maxPriorIndexT[pi] = maxPriorIndex[pi];
+
+						maxPriorIndexT[maxPriorIndex.length] = j;
+					}
+			}
+			catch (ArrayIndexOutOfBoundsException e) {
+				continue;
+			}
+		}
+
+		System.out.println("In x-validation: "
+		                   + n.getNodeID() + " node name, "
+		                   + d.length + " = d length, "
+		                   + maxPosteriorIndex
+		                   + " = max posterior index, "
+		                   + maxPriorIndex.length + " = max prior index, "
+		                   + maxPosterior + " = max posterior, "
+		                   + maxPrior + " = max prior");
+
+		boolean thisCorrect = false;
+
+		for (int pi = 0; pi < maxPriorIndex.length; pi++) {
+			if (maxPosteriorIndex == maxPriorIndex[pi] &&
+			    (maxPosteriorIndex != -1)) {
+				correct++;
+				thisCorrect = true;
+			}
+		}
+
+		if (!thisCorrect) {
+			System.out.print("Missed " + (n.getNodeID())
+			                 + ", predicted "
+			                 + maxPosteriorIndex
+			                 + ", real");
+
+			for (int pi = 0; pi < maxPriorIndex.length; pi++) {
+				System.out.print(" " + maxPriorIndex[pi]);
+			}
+
+			System.out.println();
+		}
+
+		return correct;
+	}
+
 	/** Should we ever want to use an already existing SifterExecutionSettingsContainer object,
 	 * we can direct our pointer to that.
 	 * @param settings SifterExecutionSettingsContainer object to set to.